@@ -0,0 +1,80 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AnnotationBenchmark
+{
+    private static final List<String> CLIENT_INTERFACES = Arrays.asList("bench/ClientOnly", "bench/Rendered");
+    private static final List<String> SERVER_INTERFACES = Collections.singletonList("bench/ServerOnly");
+
+    @Param({"CPW", "API", "FABRIC"})
+    public AnnotationVersion version;
+
+    @Benchmark
+    public ClassNode addToClassNode()
+    {
+        ClassNode node = new ClassNode();
+        this.version.add(node, true);
+        return node;
+    }
+
+    @Benchmark
+    public MethodNode addToMethodNode()
+    {
+        MethodNode node = new MethodNode(Opcodes.ACC_PUBLIC, "bench", "()V", null, null);
+        this.version.add(node, false);
+        return node;
+    }
+
+    @Benchmark
+    public byte[] addInterfacesToWriter()
+    {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "bench/Interfaces", null, "java/lang/Object", null);
+        this.version.add(writer, CLIENT_INTERFACES, SERVER_INTERFACES);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Reading and compressing every entry of a jar, the part of every merge and strip that scales with the number of entries.
+ * Run through the jmh task, the gc profiler shows the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EntryReadBenchmark
+{
+    @Param({"1000", "10000"})
+    public int classes;
+
+    private File dir;
+    private ZipReader reader;
+    private ZipWriter writer;
+    private byte[][] data;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        this.dir = Files.createTempDirectory("mergetool-jmh").toFile();
+        File input = new File(this.dir, "input.jar");
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int x = 0; x < this.classes; x++)
+        {
+            ClassNode node = Fixtures.node("bench/Read" + x, 20, 0, true);
+            entries.put(node.name + ".class", Fixtures.bytes(node));
+        }
+        Fixtures.jar(input, entries);
+        this.data = entries.values().toArray(new byte[0][]);
+
+        this.reader = new ZipReader(input);
+        this.writer = new ZipWriter(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        }, new MergeStats(), -1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        this.reader.close();
+        File[] files = this.dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        this.dir.delete();
+    }
+
+    @Benchmark
+    public long read() throws IOException
+    {
+        long ret = 0;
+        for (ZipReader.Entry entry : this.reader.getEntries())
+            ret += this.reader.read(entry).length;
+        return ret;
+    }
+
+    @Benchmark
+    public long compress()
+    {
+        long ret = 0;
+        for (byte[] entry : this.data)
+            ret += this.writer.compress(entry).getCompressedSize();
+        return ret;
+    }
+}
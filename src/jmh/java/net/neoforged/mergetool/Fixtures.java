@@ -0,0 +1,122 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Generates the classes used by the benchmarks, so they don't need any real jars to run.
+ */
+final class Fixtures
+{
+    private Fixtures() {}
+
+    /**
+     * Generates one side of a class with the given number of fields and methods.
+     * The divergence is the percentage of members that only exist on one side, each side drops and adds its own members.
+     * The same arguments always produce the same class.
+     */
+    static ClassNode node(String name, int members, int divergence, boolean client)
+    {
+        Random rand = new Random(name.hashCode() * 31L + (client ? 1 : 2));
+        ClassNode node = new ClassNode();
+        node.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+
+        for (int x = 0; x < members; x++)
+        {
+            if (rand.nextInt(200) < divergence)
+                continue; // Only on the other side
+
+            if (rand.nextInt(200) < divergence)
+                addMember(node, (client ? "client_" : "server_") + x, rand.nextInt(members * 10 + 1));
+
+            addMember(node, "member_" + x, x * 10);
+        }
+
+        node.visitEnd();
+        return node;
+    }
+
+    private static void addMember(ClassNode node, String name, int line)
+    {
+        node.fields.add(new FieldNode(Opcodes.ACC_PRIVATE, name, "I", null, null));
+
+        MethodNode mtd = new MethodNode(Opcodes.ACC_PUBLIC, name, "(I)I", null, null);
+        mtd.visitCode();
+        Label start = new Label();
+        mtd.visitLabel(start);
+        mtd.visitLineNumber(line, start);
+        mtd.visitVarInsn(Opcodes.ALOAD, 0);
+        mtd.visitFieldInsn(Opcodes.GETFIELD, node.name, name, "I");
+        mtd.visitVarInsn(Opcodes.ILOAD, 1);
+        mtd.visitInsn(Opcodes.IADD);
+        mtd.visitLdcInsn(line);
+        mtd.visitInsn(Opcodes.IMUL);
+        mtd.visitInsn(Opcodes.IRETURN);
+        mtd.visitMaxs(2, 2);
+        mtd.visitEnd();
+        node.methods.add(mtd);
+    }
+
+    /**
+     * A class with the given side annotation on the class itself and all of its methods, like the output of a merge.
+     */
+    static ClassNode annotated(String name, int members, AnnotationVersion annotation)
+    {
+        ClassNode node = node(name, members, 0, true);
+        annotation.add(node, true);
+        for (MethodNode mtd : node.methods)
+            annotation.add(mtd, true);
+        return node;
+    }
+
+    static byte[] bytes(ClassNode node)
+    {
+        ClassWriter writer = new ClassWriter(0);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+
+    static void jar(File file, Map<String, byte[]> entries) throws IOException
+    {
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet())
+            {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merges jars that are several times larger than the heap on several threads with a memory budget, which has to finish without running out
+ * of memory and write exactly what a single threaded merge writes. Entries are stored, so every entry waiting to be written is held at full size.
+ * Each iteration fails if the output differs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx64m")
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class MemoryBudgetBenchmark
+{
+    @Param({"6000"})
+    public int classes;
+
+    @Param({"200"})
+    public int members;
+
+    @Param({"4194304"})
+    public long budget;
+
+    private File dir;
+    private File client;
+    private File server;
+    private File expected;
+    private File output;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        this.dir = Files.createTempDirectory("mergetool-jmh").toFile();
+        this.client = new File(this.dir, "client.jar");
+        this.server = new File(this.dir, "server.jar");
+        this.expected = new File(this.dir, "expected.jar");
+        this.output = new File(this.dir, "output.jar");
+
+        // Written a class at a time, the jars don't fit in the heap
+        write(this.client, true);
+        write(this.server, false);
+        merger(this.expected).threads(1).process();
+    }
+
+    private void write(File file, boolean client) throws IOException
+    {
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            for (int x = 0; x < this.classes; x++)
+            {
+                String name = "bench/Budget" + x;
+                out.putNextEntry(new ZipEntry(name + ".class"));
+                out.write(Fixtures.bytes(Fixtures.node(name, this.members, 5, client)));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private Merger merger(File output)
+    {
+        return new Merger(this.client, this.server, output).annotate(AnnotationVersion.API, false).compression(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void check() throws IOException
+    {
+        // Compared a buffer at a time, neither jar fits in the heap
+        try (InputStream expected = new BufferedInputStream(new FileInputStream(this.expected));
+             InputStream actual = new BufferedInputStream(new FileInputStream(this.output)))
+        {
+            int b;
+            do
+            {
+                b = expected.read();
+                if (b != actual.read())
+                    throw new IllegalStateException("Bounded merge output differs from a single threaded merge");
+            } while (b != -1);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        File[] files = this.dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        this.dir.delete();
+    }
+
+    @Benchmark
+    public File process() throws IOException
+    {
+        merger(this.output).threads(4).memoryBudget(this.budget).process();
+        return this.output;
+    }
+}
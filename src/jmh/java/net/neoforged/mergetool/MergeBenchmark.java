@@ -0,0 +1,100 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MergeBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    @Param({"0", "5", "50"})
+    public int divergence;
+
+    private Merger merger;
+    private byte[] client;
+    private byte[] server;
+
+    @Setup
+    public void setup()
+    {
+        this.merger = new Merger((JarSource)null, null, null).annotate(AnnotationVersion.API, true);
+        this.client = Fixtures.bytes(Fixtures.node("bench/Merge", this.members, this.divergence, true));
+        this.server = Fixtures.bytes(Fixtures.node("bench/Merge", this.members, this.divergence, false));
+    }
+
+    @Benchmark
+    public byte[] processClass()
+    {
+        return this.merger.processClass(this.client, this.server);
+    }
+
+    @Benchmark
+    public byte[] copyClass()
+    {
+        return this.merger.annotateClass(this.client, true);
+    }
+
+    // Merging changes the nodes, so every invocation needs fresh ones.
+    @State(Scope.Thread)
+    public static class Nodes
+    {
+        private ClassNode client;
+        private ClassNode server;
+
+        @Setup(Level.Invocation)
+        public void setup(MergeBenchmark bench)
+        {
+            this.client = new ClassNode();
+            new ClassReader(bench.client).accept(this.client, 0);
+            this.server = new ClassNode();
+            new ClassReader(bench.server).accept(this.server, 0);
+        }
+    }
+
+    @Benchmark
+    public ClassNode mergeMembers(Nodes nodes)
+    {
+        Merger.processFields(nodes.client, nodes.server, (field, isClient) -> field);
+        Merger.processMethods(nodes.client, nodes.server, (method, isClient) -> method);
+        return nodes.client;
+    }
+}
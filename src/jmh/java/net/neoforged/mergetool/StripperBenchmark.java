@@ -0,0 +1,112 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StripperBenchmark
+{
+    @Param({"100", "1000"})
+    public int classes;
+
+    @Param({"50"})
+    public int members;
+
+    private File dir;
+    private File input;
+    private File output;
+    private Stripper stripper;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        this.dir = Files.createTempDirectory("mergetool-jmh").toFile();
+        this.input = new File(this.dir, "input.jar");
+        this.output = new File(this.dir, "output.jar");
+
+        // Target every class, and every other method in them
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        List<String> data = new ArrayList<>();
+        for (int x = 0; x < this.classes; x++)
+        {
+            ClassNode node = Fixtures.annotated("bench/Strip" + x, this.members, AnnotationVersion.API);
+            entries.put(node.name + ".class", Fixtures.bytes(node));
+            data.add(node.name);
+            for (int y = 0; y < node.methods.size(); y += 2)
+            {
+                MethodNode mtd = node.methods.get(y);
+                data.add(node.name + ' ' + mtd.name + mtd.desc);
+            }
+        }
+        Fixtures.jar(this.input, entries);
+
+        File dataFile = new File(this.dir, "data.txt");
+        Files.write(dataFile.toPath(), data, StandardCharsets.UTF_8);
+        this.stripper = new Stripper();
+        this.stripper.loadData(dataFile);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        File[] files = this.dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        this.dir.delete();
+    }
+
+    @Benchmark
+    public File process() throws IOException
+    {
+        this.stripper.process(this.input, this.output);
+        return this.output;
+    }
+}
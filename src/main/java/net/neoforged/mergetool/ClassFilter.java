@@ -0,0 +1,201 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which classes to keep, from include and exclude patterns matched against internal class names.
+ * A class is kept if it matches any include, or there are no includes, and doesn't match any exclude.
+ *
+ * Patterns are split into package segments and stored in a trie, so matching a class walks its name once instead of testing every pattern.
+ * Within a segment * matches any characters and ? matches one, a ** segment matches any number of packages,
+ * and a pattern ending in / matches everything below that package. Dots are treated as slashes.
+ * For example net/minecraft/client/** or net.minecraft.client.** keep the client package and everything in it.
+ */
+class ClassFilter
+{
+    private final Node includes = new Node();
+    private final Node excludes = new Node();
+    private final StringBuilder patterns = new StringBuilder();
+    private boolean hasIncludes = false;
+
+    void include(String pattern)
+    {
+        add(this.includes, pattern);
+        this.patterns.append('+').append(pattern).append('\n');
+        this.hasIncludes = true;
+    }
+
+    void exclude(String pattern)
+    {
+        add(this.excludes, pattern);
+        this.patterns.append('-').append(pattern).append('\n');
+    }
+
+    boolean isEmpty()
+    {
+        return !this.hasIncludes && this.excludes.isEmpty();
+    }
+
+    /**
+     * Every pattern, in the order they were added.
+     */
+    @Override
+    public String toString()
+    {
+        return this.patterns.toString();
+    }
+
+    boolean matches(String name)
+    {
+        if (this.hasIncludes && !match(this.includes, name, 0))
+            return false;
+        return !match(this.excludes, name, 0);
+    }
+
+    private static void add(Node root, String pattern)
+    {
+        pattern = pattern.replace('.', '/');
+        if (pattern.endsWith("/"))
+            pattern += "**";
+
+        Node node = root;
+        for (String segment : pattern.split("/", -1))
+        {
+            if (segment.equals("**"))
+            {
+                if (node.deep == null)
+                    node.deep = new Node();
+                node = node.deep;
+            }
+            else if (segment.indexOf('*') != -1 || segment.indexOf('?') != -1)
+            {
+                Node child = null;
+                for (Wildcard wildcard : node.wildcards)
+                {
+                    if (wildcard.pattern.equals(segment))
+                        child = wildcard.node;
+                }
+                if (child == null)
+                {
+                    child = new Node();
+                    node.wildcards.add(new Wildcard(segment, child));
+                }
+                node = child;
+            }
+            else
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+        }
+        node.terminal = true;
+    }
+
+    /*
+     * Whether the rest of the name, from the segment starting at start, matches anything below the node.
+     * A start of -1 means the whole name has been matched.
+     */
+    private static boolean match(Node node, String name, int start)
+    {
+        if (node.deep != null && start != -1)
+        {
+            // ** can match any number of segments, but something has to be left for it, so a/** doesn't match a class named a
+            int next = start;
+            while (true)
+            {
+                if (match(node.deep, name, next))
+                    return true;
+                if (next == -1)
+                    break;
+                int slash = name.indexOf('/', next);
+                next = slash == -1 ? -1 : slash + 1;
+            }
+        }
+
+        if (start == -1)
+            return node.terminal;
+
+        int slash = name.indexOf('/', start);
+        int end = slash == -1 ? name.length() : slash;
+        int next = slash == -1 ? -1 : slash + 1;
+
+        if (!node.children.isEmpty())
+        {
+            Node child = node.children.get(name.substring(start, end));
+            if (child != null && match(child, name, next))
+                return true;
+        }
+
+        for (Wildcard wildcard : node.wildcards)
+        {
+            if (glob(wildcard.pattern, 0, name, start, end) && match(wildcard.node, name, next))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean glob(String pattern, int pPos, String name, int nPos, int nEnd)
+    {
+        while (pPos < pattern.length())
+        {
+            char c = pattern.charAt(pPos);
+            if (c == '*')
+            {
+                for (int x = nPos; x <= nEnd; x++)
+                {
+                    if (glob(pattern, pPos + 1, name, x, nEnd))
+                        return true;
+                }
+                return false;
+            }
+            if (nPos == nEnd || (c != '?' && c != name.charAt(nPos)))
+                return false;
+            pPos++;
+            nPos++;
+        }
+        return nPos == nEnd;
+    }
+
+    private static class Node
+    {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Wildcard> wildcards = new ArrayList<>();
+        private Node deep = null;
+        private boolean terminal = false;
+
+        private boolean isEmpty()
+        {
+            return this.children.isEmpty() && this.wildcards.isEmpty() && this.deep == null && !this.terminal;
+        }
+    }
+
+    private static class Wildcard
+    {
+        private final String pattern;
+        private final Node node;
+
+        private Wildcard(String pattern, Node node)
+        {
+            this.pattern = pattern;
+            this.node = node;
+        }
+    }
+}
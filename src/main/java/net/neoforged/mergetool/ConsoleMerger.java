@@ -20,9 +20,12 @@ package net.neoforged.mergetool;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -31,7 +34,7 @@ import joptsimple.ValueConverter;
 
 public class ConsoleMerger
 {
-    private static enum Tasks { MERGE, STRIP };
+    private static enum Tasks { MERGE, STRIP, BATCH, DAEMON, DISTS };
     private static final ValueConverter<AnnotationVersion> AnnotationReader = new ValueConverter<AnnotationVersion>()
     {
         @Override
@@ -61,6 +64,27 @@ public class ConsoleMerger
     };
 
     public static void main(String[] args)
+    {
+        List<String> local = new ArrayList<>();
+        File daemon = null;
+        for (int x = 0; x < args.length; x++)
+        {
+            if ("--use-daemon".equals(args[x]) && x + 1 < args.length)
+                daemon = new File(args[++x]);
+            else
+                local.add(args[x]);
+        }
+        args = local.toArray(new String[local.size()]);
+
+        Boolean success = daemon == null ? null : MergeDaemon.forward(daemon, args);
+        if (success == null) // No daemon running, so do the work ourselves
+            success = run(args);
+
+        if (!success)
+            System.exit(1);
+    }
+
+    static boolean run(String[] args)
     {
         List<String> extra = new ArrayList<>();
         Tasks task = null;
@@ -79,17 +103,135 @@ public class ConsoleMerger
                     throw new IllegalArgumentException("Only one task supported at a time: " + task);
                 task = Tasks.MERGE;
             }
+            else if ("--merge-dists".equals(args[x]))
+            {
+                if (task != null)
+                    throw new IllegalArgumentException("Only one task supported at a time: " + task);
+                task = Tasks.DISTS;
+            }
+            else if ("--batch".equals(args[x]))
+            {
+                if (task != null)
+                    throw new IllegalArgumentException("Only one task supported at a time: " + task);
+                task = Tasks.BATCH;
+                extra.add(args[x]); // Also the option holding the manifest
+            }
+            else if ("--daemon".equals(args[x]))
+            {
+                if (task != null)
+                    throw new IllegalArgumentException("Only one task supported at a time: " + task);
+                task = Tasks.DAEMON;
+                extra.add(args[x]); // Also the option holding the port file
+            }
             else
                 extra.add(args[x]);
         }
 
         if (task == Tasks.MERGE || task == null)
-            merge(extra.toArray(new String[extra.size()]));
+            return merge(extra.toArray(new String[extra.size()]), null);
         else if (task == Tasks.STRIP)
-            strip(extra.toArray(new String[extra.size()]));
+            return strip(extra.toArray(new String[extra.size()]));
+        else if (task == Tasks.DISTS)
+            return mergeDists(extra.toArray(new String[extra.size()]));
+        else if (task == Tasks.BATCH)
+            return batch(extra.toArray(new String[extra.size()]));
+        else
+            return daemon(extra.toArray(new String[extra.size()]));
+    }
+
+    /*
+     * Stays running and serves requests from other ConsoleMerger processes started with --use-daemon, until no request arrives for the idle timeout.
+     */
+    private static boolean daemon(String[] args)
+    {
+        OptionParser parser = new OptionParser();
+        OptionSpec<File> file = parser.accepts("daemon").withRequiredArg().ofType(File.class).required();
+        OptionSpec<Integer> idle = parser.accepts("idle-timeout").withRequiredArg().ofType(Integer.class).defaultsTo(600);
+
+        try
+        {
+            OptionSet options = parser.parse(args);
+            new MergeDaemon(options.valueOf(file), options.valueOf(idle) * 1000).serve();
+            return true;
+        }
+        catch (OptionException e)
+        {
+            System.out.println("Usage: ConsoleMerger --daemon <PortFile> [--idle-timeout <Seconds>]");
+            e.printStackTrace();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /*
+     * Runs every merge listed in the manifest, one per line with the same arguments as --merge.
+     * The merges run one after another in this JVM, sharing one pool of worker threads, and a failed merge doesn't stop the rest.
+     */
+    private static boolean batch(String[] args)
+    {
+        OptionParser parser = new OptionParser();
+        OptionSpec<File> manifest = parser.accepts("batch").withRequiredArg().ofType(File.class).required();
+        OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+
+        List<String> lines;
+        int count;
+        try
+        {
+            OptionSet options = parser.parse(args);
+            lines = Files.readAllLines(options.valueOf(manifest).toPath());
+            count = options.valueOf(threads);
+        }
+        catch (OptionException | IOException e)
+        {
+            System.out.println("Usage: ConsoleMerger --batch <Manifest> [--threads <Count>]");
+            e.printStackTrace();
+            return false;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(count <= 0 ? Runtime.getRuntime().availableProcessors() : count);
+        List<String> failed = new ArrayList<>();
+        int jobs = 0;
+        try
+        {
+            for (int x = 0; x < lines.size(); x++)
+            {
+                String line = lines.get(x).trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                jobs++;
+                String job = "line " + (x + 1) + ": " + line;
+                System.out.println("Merging " + job);
+                boolean success;
+                try
+                {
+                    success = merge(line.split("\\s+"), executor);
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace();
+                    success = false;
+                }
+                System.out.println((success ? "OK     " : "FAILED ") + job);
+                if (!success)
+                    failed.add(job);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Finished " + jobs + " merges, " + failed.size() + " failed");
+        for (String job : failed)
+            System.out.println("  " + job);
+        return failed.isEmpty();
     }
 
-    private static void merge(String[] args)
+    private static boolean merge(String[] args, ExecutorService executor)
     {
         OptionParser parser = new OptionParser();
         OptionSpec<File> client = parser.accepts("client").withRequiredArg().ofType(File.class).required();
@@ -99,6 +241,16 @@ public class ConsoleMerger
         OptionSpec<Void> data = parser.accepts("keep-data");
         OptionSpec<Void> meta = parser.accepts("keep-meta");
         OptionSpec<AnnotationVersion> anno = parser.accepts("ann").withOptionalArg().ofType(AnnotationVersion.class).withValuesConvertedBy(AnnotationReader).defaultsTo(AnnotationVersion.API);
+        OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        OptionSpec<File> cache = parser.accepts("cache").withRequiredArg().ofType(File.class);
+        OptionSpec<Long> cacheSize = parser.accepts("cache-size").withRequiredArg().ofType(Long.class).defaultsTo(512L);
+        OptionSpec<String> stats = parser.accepts("stats").withRequiredArg().ofType(String.class);
+        OptionSpec<Integer> level = parser.accepts("compression-level").withRequiredArg().ofType(Integer.class).defaultsTo(-1);
+        OptionSpec<String> include = parser.accepts("include").withRequiredArg().ofType(String.class);
+        OptionSpec<String> exclude = parser.accepts("exclude").withRequiredArg().ofType(String.class);
+        OptionSpec<File> sided = parser.accepts("sided-index").withRequiredArg().ofType(File.class);
+        OptionSpec<Long> budget = parser.accepts("memory-budget").withRequiredArg().ofType(Long.class);
+        OptionSpec<Void> stamp = parser.accepts("stamp");
 
         try
         {
@@ -110,7 +262,8 @@ public class ConsoleMerger
 
             Merger merge = new Merger(client_jar, server_jar, merged_jar);
 
-            if (merged_jar.exists() && !merged_jar.delete())
+            // With a stamp the existing output may be up to date, it's overwritten anyway if it isn't.
+            if (!options.has(stamp) && merged_jar.exists() && !merged_jar.delete())
                 System.out.println("Could not delete output file: " + merged_jar);
 
             if (options.has(anno))
@@ -122,9 +275,36 @@ public class ConsoleMerger
             if (options.has(meta))
                 merge.keepMeta();
 
+            options.valuesOf(include).forEach(merge::include);
+            options.valuesOf(exclude).forEach(merge::exclude);
+
+            merge.threads(options.valueOf(threads));
+            merge.compression(options.valueOf(level));
+            if (executor != null)
+                merge.executor(executor);
+
+            if (options.has(stamp))
+                merge.stamp();
+
+            if (options.has(budget))
+                merge.memoryBudget(options.valueOf(budget) * 1024 * 1024);
+
+            if (options.has(sided))
+                merge.sideIndex(options.valueOf(sided));
+
+            if (options.has(cache))
+                merge.cache(options.valueOf(cache), options.valueOf(cacheSize) * 1024 * 1024);
+
             try
             {
                 merge.process();
+                if (merge.isUpToDate())
+                    System.out.println("Output is up to date: " + merged_jar);
+                else
+                    System.out.println("Unchanged classes: " + merge.getUnchangedCount());
+                if (options.has(stats))
+                    printStats(merge.getStats(), options.valueOf(stats));
+                return true;
             }
             catch (IOException e)
             {
@@ -133,30 +313,101 @@ public class ConsoleMerger
         }
         catch (OptionException e)
         {
-            System.out.println("Usage: ConsoleMerger --merge --client <ClientJar> --server <ServerJar> --output <MergedJar> [--ann CPW|NMF|API|FABRIC] [--keep-data] [--keep-meta]");
+            System.out.println("Usage: ConsoleMerger --merge --client <ClientJar> --server <ServerJar> --output <MergedJar> [--ann CPW|NMF|API|FABRIC] [--keep-data] [--keep-meta] [--threads <Count>] [--cache <Dir> [--cache-size <MB>]] [--compression-level <0-9>] [--include <Pattern>]... [--exclude <Pattern>]... [--sided-index <File>] [--memory-budget <MB>] [--stamp] [--stats text|json]");
             e.printStackTrace();
         }
+        return false;
     }
 
-    private static void strip(String[] args)
+    /*
+     * Merges any number of distributions, given as name=jar, in one pass.
+     */
+    private static boolean mergeDists(String[] args)
     {
         OptionParser parser = new OptionParser();
-        OptionSpec<File> input = parser.accepts("input").withRequiredArg().ofType(File.class).required();
-        OptionSpec<File> output = parser.accepts("output").withRequiredArg().ofType(File.class).required();
-        OptionSpec<File> data = parser.accepts("data").withRequiredArg().ofType(File.class).required();
+        OptionSpec<String> inputs = parser.accepts("input").withRequiredArg().ofType(String.class).required();
+        OptionSpec<File> merged = parser.accepts("output").withRequiredArg().ofType(File.class).required();
+        OptionSpec<String> anno = parser.accepts("annotation").withRequiredArg().ofType(String.class);
+        OptionSpec<Void> data = parser.accepts("keep-data");
+        OptionSpec<Void> meta = parser.accepts("keep-meta");
+        OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        OptionSpec<String> stats = parser.accepts("stats").withRequiredArg().ofType(String.class);
+        OptionSpec<Integer> level = parser.accepts("compression-level").withRequiredArg().ofType(Integer.class).defaultsTo(-1);
+        OptionSpec<Long> budget = parser.accepts("memory-budget").withRequiredArg().ofType(Long.class);
 
         try
         {
             OptionSet options = parser.parse(args);
 
-            File input_jar = options.valueOf(input).getAbsoluteFile();
-            File output_jar = options.valueOf(output).getAbsoluteFile();
+            File merged_jar = options.valueOf(merged);
+            if (merged_jar.exists() && !merged_jar.delete())
+                System.out.println("Could not delete output file: " + merged_jar);
+
+            DistributionMerger merge = new DistributionMerger(JarSink.of(merged_jar));
+            for (String input : options.valuesOf(inputs))
+            {
+                int idx = input.indexOf('=');
+                if (idx <= 0)
+                    throw new IllegalArgumentException("Inputs must be given as name=jar: " + input);
+                merge.add(input.substring(0, idx), JarSource.of(new File(input.substring(idx + 1))));
+            }
+
+            if (options.has(anno))
+                merge.annotate(options.valueOf(anno));
+            if (options.has(data))
+                merge.keepData();
+            if (options.has(meta))
+                merge.keepMeta();
+            merge.threads(options.valueOf(threads));
+            merge.compression(options.valueOf(level));
+            if (options.has(budget))
+                merge.memoryBudget(options.valueOf(budget) * 1024 * 1024);
 
             try
             {
-                System.out.println("Input:  " + input_jar);
-                System.out.println("Output: " + output_jar);
-                Stripper strip = new Stripper();
+                merge.process();
+                if (options.has(stats))
+                    printStats(merge.getStats(), options.valueOf(stats));
+                return true;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        catch (OptionException e)
+        {
+            System.out.println("Usage: ConsoleMerger --merge-dists --input <Name>=<Jar>... --output <MergedJar> [--annotation <Descriptor>] [--keep-data] [--keep-meta] [--threads <Count>] [--compression-level <0-9>] [--memory-budget <MB>] [--stats text|json]");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static boolean strip(String[] args)
+    {
+        OptionParser parser = new OptionParser();
+        OptionSpec<File> compile = parser.accepts("compile-data").withRequiredArg().ofType(File.class);
+        OptionSpec<File> input = parser.accepts("input").requiredUnless("compile-data").withRequiredArg().ofType(File.class);
+        OptionSpec<File> output = parser.accepts("output").requiredUnless("compile-data").requiredIf("input").withRequiredArg().ofType(File.class);
+        OptionSpec<File> data = parser.accepts("data").withRequiredArg().ofType(File.class).required();
+        OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        OptionSpec<String> stats = parser.accepts("stats").withRequiredArg().ofType(String.class);
+        OptionSpec<Integer> level = parser.accepts("compression-level").withRequiredArg().ofType(Integer.class).defaultsTo(-1);
+        OptionSpec<String> include = parser.accepts("include").withRequiredArg().ofType(String.class);
+        OptionSpec<String> exclude = parser.accepts("exclude").withRequiredArg().ofType(String.class);
+        OptionSpec<Long> budget = parser.accepts("memory-budget").withRequiredArg().ofType(Long.class);
+
+        try
+        {
+            OptionSet options = parser.parse(args);
+
+            try
+            {
+                Stripper strip = new Stripper().threads(options.valueOf(threads)).compression(options.valueOf(level));
+                if (options.has(budget))
+                    strip.memoryBudget(options.valueOf(budget) * 1024 * 1024);
+                options.valuesOf(include).forEach(strip::include);
+                options.valuesOf(exclude).forEach(strip::exclude);
 
                 for (File dataF : options.valuesOf(data))
                 {
@@ -164,10 +415,27 @@ public class ConsoleMerger
                     strip.loadData(dataF);
                 }
 
+                if (options.has(compile))
+                {
+                    File compiled = options.valueOf(compile).getAbsoluteFile();
+                    System.out.println("Compiled: " + compiled);
+                    strip.compileData(compiled);
+                    if (!options.has(input))
+                        return true;
+                }
+
+                File input_jar = options.valueOf(input).getAbsoluteFile();
+                File output_jar = options.valueOf(output).getAbsoluteFile();
+                System.out.println("Input:  " + input_jar);
+                System.out.println("Output: " + output_jar);
+
                 if (output_jar.exists() && !output_jar.delete())
                     System.out.println("Could not delete output file: " + output_jar);
 
                 strip.process(input_jar, output_jar);
+                if (options.has(stats))
+                    printStats(strip.getStats(), options.valueOf(stats));
+                return true;
             }
             catch (IOException e)
             {
@@ -176,8 +444,17 @@ public class ConsoleMerger
         }
         catch (OptionException e)
         {
-            System.out.println("Usage: ConsoleMerger --strip --input <InputJar> --output <OutputJar> --data <DataText>...");
+            System.out.println("Usage: ConsoleMerger --strip --input <InputJar> --output <OutputJar> --data <DataText>... [--threads <Count>] [--compile-data <DataFile>] [--compression-level <0-9>] [--include <Pattern>]... [--exclude <Pattern>]... [--memory-budget <MB>] [--stats text|json]");
             e.printStackTrace();
         }
+        return false;
+    }
+
+    private static void printStats(MergeStats stats, String format)
+    {
+        if ("json".equalsIgnoreCase(format))
+            System.out.println(stats.toJson());
+        else
+            System.out.print(stats);
     }
 }
@@ -0,0 +1,348 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Merges any number of named distributions of the same program into one jar, reading, parsing and writing every class once.
+ * Members are lined up across all of the distributions with the same rules {@link Merger} uses for a client and a server,
+ * and anything that isn't in every distribution holding its class is marked with an annotation listing the distributions it is in.
+ *
+ * The annotation is given as a descriptor, and has a single String[] value. It is written with class retention, so the
+ * annotation class doesn't have to exist. Classes never get more than one. Interfaces only some distributions implement
+ * are listed on it in two parallel arrays with an entry for every distribution implementing each of them, the interface in
+ * _interfaces and the distribution in _interfaceDists, so the annotation type can declare them as Class[] and String[].
+ * The value of the class annotation is then every distribution with the class, even if that is all of them.
+ */
+public class DistributionMerger
+{
+    private final List<String> names = new ArrayList<>();
+    private final List<JarSource> inputs = new ArrayList<>();
+    private final JarSink output;
+    private String annotation = null;
+    private boolean copyData = false;
+    private boolean keepMeta = false;
+    private int threads = 1;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private long budget = 0;
+    private MergeStats stats = new MergeStats();
+
+    public DistributionMerger(JarSink output)
+    {
+        this.output = output;
+    }
+
+    /**
+     * Adds a distribution, distributions are lined up in the order they are added.
+     * Bundler server jars are read through to the server jar nested in them.
+     */
+    public DistributionMerger add(String name, JarSource input)
+    {
+        if (this.names.contains(name))
+            throw new IllegalArgumentException("Duplicate distribution: " + name);
+        this.names.add(name);
+        this.inputs.add(input);
+        return this;
+    }
+
+    /**
+     * The descriptor of the annotation used to mark things that aren't in every distribution, for example Lcom/example/Dist;.
+     * Without one, the output is the union of all the distributions with nothing marked.
+     */
+    public DistributionMerger annotate(String descriptor)
+    {
+        this.annotation = descriptor;
+        return this;
+    }
+
+    /**
+     * Copies everything that isn't a class, from the first distribution that has it.
+     */
+    public DistributionMerger keepData()
+    {
+        this.copyData = true;
+        return this;
+    }
+
+    public DistributionMerger keepMeta()
+    {
+        this.keepMeta = true;
+        return this;
+    }
+
+    /**
+     * Sets the number of worker threads used to merge classes, a value of 0 or less uses one thread per available processor.
+     * The output is identical to a single threaded run.
+     */
+    public DistributionMerger threads(int threads)
+    {
+        this.threads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        return this;
+    }
+
+    /**
+     * Limits how much is held in memory at once when merging on several threads, the same way as {@link Merger#memoryBudget(long)}.
+     */
+    public DistributionMerger memoryBudget(long bytes)
+    {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Invalid memory budget: " + bytes);
+        this.budget = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the deflate level used for entries that have to be compressed, from -1 for the default to 9.
+     */
+    public DistributionMerger compression(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Statistics for the last, or currently running, call to {@link #process()}.
+     */
+    public MergeStats getStats()
+    {
+        return this.stats;
+    }
+
+    public void process() throws IOException
+    {
+        if (this.names.size() < 2)
+            throw new IllegalStateException("At least two distributions are needed to merge");
+
+        this.stats = new MergeStats();
+        long start = System.nanoTime();
+        List<ZipReader> readers = new ArrayList<>();
+        try (ZipWriter out = this.output.open(this.stats, this.level))
+        {
+            for (JarSource input : this.inputs)
+                readers.add(input.open().unbundle());
+            this.stats.time(MergeStats.Phase.INDEX, start);
+
+            // Class -> its entry in every distribution, in the order they are first seen
+            Map<String, ZipReader.Entry[]> classes = new LinkedHashMap<>();
+            Set<String> added = new HashSet<>();
+            for (int x = 0; x < readers.size(); x++)
+            {
+                ZipReader reader = readers.get(x);
+                for (ZipReader.Entry entry : reader.getEntries())
+                {
+                    String name = entry.getName();
+                    if (!entry.isDirectory() && name.endsWith(".class") && !name.startsWith("."))
+                        classes.computeIfAbsent(name, k -> new ZipReader.Entry[readers.size()])[x] = entry;
+                    else if (this.copyData && !entry.isDirectory() && (this.keepMeta || !name.startsWith("META-INF")) && added.add(name))
+                        out.writeRaw(name, Merger.ENTRY_TIME, copy(reader, entry, out));
+                }
+            }
+
+            List<EntryTask> tasks = new ArrayList<>(classes.size());
+            for (Map.Entry<String, ZipReader.Entry[]> cls : classes.entrySet())
+            {
+                long weight = 0;
+                for (ZipReader.Entry entry : cls.getValue())
+                    weight += entry == null ? 0 : entry.getSize();
+                tasks.add(new EntryTask(cls.getKey(), weight, () -> mergeClass(readers, cls.getValue(), out)));
+            }
+            EntryTask.runAll(tasks, this.threads, null, this.budget, (x, data) -> out.writeRaw(tasks.get(x).name, Merger.ENTRY_TIME, data));
+        }
+        finally
+        {
+            for (ZipReader reader : readers)
+                reader.close();
+        }
+        this.stats.finish();
+    }
+
+    private RawEntry mergeClass(List<ZipReader> readers, ZipReader.Entry[] entries, ZipWriter out) throws IOException
+    {
+        BitSet dists = new BitSet();
+        byte[][] data = new byte[entries.length][];
+        int first = -1;
+        boolean same = true;
+        for (int x = 0; x < entries.length; x++)
+        {
+            if (entries[x] == null)
+                continue;
+            dists.set(x);
+            long start = System.nanoTime();
+            data[x] = readers.get(x).read(entries[x]);
+            this.stats.time(MergeStats.Phase.READ, start);
+            this.stats.add(MergeStats.Count.BYTES_READ, data[x].length);
+            if (first == -1)
+                first = x;
+            else
+                same &= Arrays.equals(data[first], data[x]);
+        }
+
+        // In every distribution and the same everywhere, or only in some and there is nothing to mark it with.
+        if (same && (dists.cardinality() == entries.length || this.annotation == null))
+        {
+            this.stats.add(MergeStats.Count.UNCHANGED, 1);
+            if (out.canCopy(entries[first]))
+            {
+                this.stats.add(MergeStats.Count.COPIED, 1);
+                return readers.get(first).readRaw(entries[first]);
+            }
+            return out.compress(data[first]);
+        }
+
+        long start = System.nanoTime();
+        List<ClassNode> nodes = new ArrayList<>();
+        for (int x = dists.nextSetBit(0); x != -1; x = dists.nextSetBit(x + 1))
+        {
+            ClassNode node = new ClassNode();
+            new ClassReader(data[x]).accept(node, 0);
+            nodes.add(node);
+        }
+        this.stats.time(MergeStats.Phase.PARSE, start);
+
+        start = System.nanoTime();
+        ClassNode merged = merge(nodes, dists);
+        ClassWriter writer = new ClassWriter(0); // Nothing touches the bytecode, so the maxs that were read are still right
+        merged.accept(writer);
+        byte[] ret = writer.toByteArray();
+        this.stats.time(MergeStats.Phase.MERGE, start);
+        this.stats.add(MergeStats.Count.MERGED, 1);
+        return out.compress(ret);
+    }
+
+    /*
+     * Lines up the members of every distribution at once into the first one, all in memory. Which distributions have each member
+     * is worked out from the keys each one had, using the same keys the members are lined up by.
+     */
+    private ClassNode merge(List<ClassNode> nodes, BitSet dists)
+    {
+        Map<String, BitSet> fields = new HashMap<>();
+        Map<String, BitSet> methods = new HashMap<>();
+        Map<String, BitSet> interfaces = new HashMap<>();
+        int idx = 0;
+        for (int x = dists.nextSetBit(0); x != -1; x = dists.nextSetBit(x + 1), idx++)
+        {
+            ClassNode node = nodes.get(idx);
+            for (FieldNode field : node.fields)
+                fields.computeIfAbsent(field.name, k -> new BitSet()).set(x);
+            for (MethodNode method : node.methods)
+                methods.computeIfAbsent(method.name + method.desc, k -> new BitSet()).set(x);
+            for (String intf : node.interfaces)
+                interfaces.computeIfAbsent(intf, k -> new BitSet()).set(x);
+        }
+
+        ClassNode ret = nodes.get(0);
+        if (nodes.size() > 1)
+        {
+            // Which distributions have each member is already known, so members are annotated afterwards instead of while lining them up
+            ret.fields = Merger.alignFields(nodes);
+            ret.methods = Merger.alignMethods(nodes);
+            for (ClassNode node : nodes.subList(1, nodes.size()))
+                Merger.processInners(ret, node);
+
+            ret.interfaces = new ArrayList<>(interfaces.keySet());
+            Collections.sort(ret.interfaces); // Like Merger, sorted so the order doesn't depend on the distributions
+        }
+
+        if (this.annotation == null)
+            return ret;
+
+        List<String> partial = new ArrayList<>();
+        for (String intf : ret.interfaces)
+        {
+            if (!interfaces.get(intf).equals(dists))
+                partial.add(intf);
+        }
+        if (dists.cardinality() != this.names.size() || !partial.isEmpty())
+        {
+            AnnotationVisitor av = ret.visitAnnotation(this.annotation, false);
+            if (!partial.isEmpty())
+            {
+                AnnotationVisitor intfs = av.visitArray("_interfaces");
+                AnnotationVisitor intfDists = av.visitArray("_interfaceDists");
+                for (String intf : partial)
+                {
+                    BitSet on = interfaces.get(intf);
+                    for (int x = on.nextSetBit(0); x != -1; x = on.nextSetBit(x + 1))
+                    {
+                        intfs.visit(null, Type.getObjectType(intf));
+                        intfDists.visit(null, this.names.get(x));
+                    }
+                }
+                intfs.visitEnd();
+                intfDists.visitEnd();
+            }
+            annotate(av, dists);
+        }
+        for (FieldNode field : ret.fields)
+        {
+            BitSet on = fields.get(field.name);
+            if (!on.equals(dists))
+                annotate(field.visitAnnotation(this.annotation, false), on);
+        }
+        for (MethodNode method : ret.methods)
+        {
+            BitSet on = methods.get(method.name + method.desc);
+            if (!on.equals(dists))
+                annotate(method.visitAnnotation(this.annotation, false), on);
+        }
+        return ret;
+    }
+
+    private void annotate(AnnotationVisitor av, BitSet dists)
+    {
+        AnnotationVisitor values = av.visitArray("value");
+        for (int x = dists.nextSetBit(0); x != -1; x = dists.nextSetBit(x + 1))
+            values.visit(null, this.names.get(x));
+        values.visitEnd();
+        av.visitEnd();
+    }
+
+    private RawEntry copy(ZipReader reader, ZipReader.Entry entry, ZipWriter out) throws IOException
+    {
+        if (out.canCopy(entry))
+        {
+            this.stats.add(MergeStats.Count.COPIED, 1);
+            return reader.readRaw(entry);
+        }
+        return out.convert(reader, entry);
+    }
+}
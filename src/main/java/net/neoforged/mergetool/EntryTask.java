@@ -0,0 +1,179 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The work for one entry of an output jar, and the code that runs a list of them on worker threads while writing the results in order.
+ * A task without a job is written on the writing thread with no data, for entries that are cheaper to copy there.
+ */
+class EntryTask
+{
+    final String name;
+    final long weight;
+    private final Job job;
+    private Future<RawEntry> future;
+
+    /**
+     * @param weight The uncompressed size of everything the job reads, used to schedule the largest first and to fit tasks in a memory budget
+     */
+    EntryTask(String name, long weight, Job job)
+    {
+        this.name = name;
+        this.weight = weight;
+        this.job = job;
+    }
+
+    // Produces the compressed entry, so compression also happens on the worker threads.
+    interface Job
+    {
+        RawEntry run() throws IOException;
+    }
+
+    interface Output
+    {
+        /**
+         * Writes the result of the task at the index, null if the task has no job.
+         */
+        void write(int index, RawEntry data) throws IOException;
+    }
+
+    /**
+     * Runs every task and writes the results in the order of the list, so the output never depends on which worker finished first.
+     * Runs on the calling thread when there is only one thread and no executor. A shared executor is not shut down,
+     * and this must not be called from one of its own threads. A budget above 0 limits the weight of the tasks started but not written yet,
+     * see {@link Merger#memoryBudget(long)}.
+     */
+    static void runAll(List<EntryTask> tasks, int threads, ExecutorService shared, long budget, Output output) throws IOException
+    {
+        if (threads <= 1 && shared == null)
+        {
+            for (int x = 0; x < tasks.size(); x++)
+            {
+                EntryTask task = tasks.get(x);
+                output.write(x, task.job == null ? null : task.job.run());
+            }
+            return;
+        }
+
+        ExecutorService executor = shared != null ? shared : Executors.newFixedThreadPool(threads);
+        try
+        {
+            if (budget > 0)
+                runBounded(tasks, executor, budget, output);
+            else
+            {
+                // Start the largest tasks first so a few huge classes don't end up running alone at the end.
+                List<EntryTask> schedule = new ArrayList<>(tasks);
+                schedule.sort(Comparator.comparingLong((EntryTask t) -> t.weight).reversed());
+                for (EntryTask task : schedule)
+                    task.submit(executor);
+
+                for (int x = 0; x < tasks.size(); x++)
+                    write(tasks, x, output);
+            }
+        }
+        finally
+        {
+            if (executor != shared)
+                executor.shutdownNow();
+            else
+            {
+                // Shared pool, so only stop our own work if we failed part way through.
+                for (EntryTask task : tasks)
+                {
+                    if (task.future != null)
+                        task.future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /*
+     * Only starts a task once the tasks already started but not yet written fit in the budget.
+     * Tasks are started in the order they are written, so the task the writer waits on is always running, and it is
+     * started even if it doesn't fit on its own. Writing a task frees its share of the budget for the next ones.
+     */
+    private static void runBounded(List<EntryTask> tasks, ExecutorService executor, long budget, Output output) throws IOException
+    {
+        long inFlight = 0;
+        int next = 0;
+        for (int x = 0; x < tasks.size(); x++)
+        {
+            while (next < tasks.size() && (next == x || inFlight + tasks.get(next).weight <= budget))
+            {
+                EntryTask task = tasks.get(next++);
+                inFlight += task.weight;
+                task.submit(executor);
+            }
+
+            write(tasks, x, output);
+            inFlight -= tasks.get(x).weight;
+        }
+    }
+
+    private void submit(ExecutorService executor)
+    {
+        if (this.job != null)
+            this.future = executor.submit(this.job::run);
+    }
+
+    private static void write(List<EntryTask> tasks, int index, Output output) throws IOException
+    {
+        EntryTask task = tasks.get(index);
+        RawEntry data = task.future == null ? null : get(task.future, task.name);
+        task.future = null; // Don't hold on to the data once it's written
+        output.write(index, data);
+    }
+
+    /**
+     * Waits for the result, rethrowing whatever the task threw as it is when it can be.
+     */
+    static <T> T get(Future<T> future, String name) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + name, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException("Failed to process " + name, cause);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Where an output jar goes, either a file on any file system, a stream, or straight to a callback for every entry.
+ */
+public abstract class JarSink
+{
+    private JarSink()
+    {
+    }
+
+    abstract ZipWriter open(MergeStats stats, int level) throws IOException;
+
+    /**
+     * The file the jar is written to, or null if it doesn't go to a file.
+     */
+    Path getPath()
+    {
+        return null;
+    }
+
+    public static JarSink of(File file)
+    {
+        return of(file.toPath());
+    }
+
+    public static JarSink of(Path path)
+    {
+        return new JarSink()
+        {
+            @Override
+            ZipWriter open(MergeStats stats, int level) throws IOException
+            {
+                return new ZipWriter(new BufferedOutputStream(Files.newOutputStream(path)), stats, level);
+            }
+
+            @Override
+            Path getPath()
+            {
+                return path;
+            }
+
+            @Override
+            public String toString()
+            {
+                return path.toString();
+            }
+        };
+    }
+
+    /**
+     * Writes the jar to the stream, which is flushed but left open once the jar is finished.
+     */
+    public static JarSink of(OutputStream out)
+    {
+        return new JarSink()
+        {
+            @Override
+            ZipWriter open(MergeStats stats, int level) throws IOException
+            {
+                return new ZipWriter(new BufferedOutputStream(new FilterOutputStream(out)
+                {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException
+                    {
+                        this.out.write(b, off, len); // FilterOutputStream writes one byte at a time
+                    }
+
+                    @Override
+                    public void close() throws IOException
+                    {
+                        flush();
+                    }
+                }), stats, level);
+            }
+        };
+    }
+
+    /**
+     * Hands every entry to the consumer, uncompressed and in the order it would have been written to a jar.
+     * The compression level is ignored, and entries are never compressed.
+     */
+    public static JarSink of(EntryConsumer consumer)
+    {
+        return new JarSink()
+        {
+            @Override
+            ZipWriter open(MergeStats stats, int level) throws IOException
+            {
+                return new ConsumerWriter(consumer, stats);
+            }
+        };
+    }
+
+    public interface EntryConsumer
+    {
+        /**
+         * Called from a single thread, the data must not be modified.
+         */
+        void accept(String name, byte[] data) throws IOException;
+    }
+
+    // Stores everything, so entries of the input jars reach the consumer inflated, and new entries are never compressed.
+    private static class ConsumerWriter extends ZipWriter
+    {
+        private final EntryConsumer consumer;
+        private final MergeStats stats;
+
+        private ConsumerWriter(EntryConsumer consumer, MergeStats stats)
+        {
+            super(null, stats, Deflater.NO_COMPRESSION);
+            this.consumer = consumer;
+            this.stats = stats;
+        }
+
+        @Override
+        RawEntry compress(byte[] data)
+        {
+            return new RawEntry(ZipEntry.STORED, 0, data.length, ByteBuffer.wrap(data)); // Nothing checks the CRC
+        }
+
+        @Override
+        void writeEntry(String name, int time, RawEntry entry) throws IOException
+        {
+            addName(name);
+            ByteBuffer buf = entry.data.duplicate();
+            byte[] data;
+            if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length)
+                data = buf.array();
+            else
+            {
+                data = new byte[buf.remaining()];
+                buf.get(data);
+            }
+
+            long start = System.nanoTime();
+            this.consumer.accept(name, data);
+            this.stats.time(MergeStats.Phase.WRITE, start);
+            this.stats.add(MergeStats.Count.BYTES_WRITTEN, data.length);
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * A jar to read from, either a file on any file system or a jar that is already in memory.
+ * In memory jars are read in place, without being copied.
+ */
+public abstract class JarSource
+{
+    private JarSource()
+    {
+    }
+
+    abstract ZipReader open() throws IOException;
+
+    public static JarSource of(File file)
+    {
+        return of(file.toPath());
+    }
+
+    /**
+     * Files on the default file system are memory mapped, files on other file systems are read into memory when the jar is opened.
+     */
+    public static JarSource of(Path path)
+    {
+        return new JarSource()
+        {
+            @Override
+            ZipReader open() throws IOException
+            {
+                return new ZipReader(path);
+            }
+
+            @Override
+            public String toString()
+            {
+                return path.toString();
+            }
+        };
+    }
+
+    public static JarSource of(byte[] data)
+    {
+        return of(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * The jar between the current position and limit of the buffer. The buffer itself is not modified.
+     */
+    public static JarSource of(ByteBuffer data)
+    {
+        ByteBuffer copy = data.slice();
+        return new JarSource()
+        {
+            @Override
+            ZipReader open() throws IOException
+            {
+                return new ZipReader(copy, toString());
+            }
+
+            @Override
+            public String toString()
+            {
+                return "<memory>";
+            }
+        };
+    }
+}
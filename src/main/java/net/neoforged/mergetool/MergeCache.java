@@ -0,0 +1,260 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A directory of merged classes, keyed by a hash of everything that goes into merging them.
+ * Files are only ever created by an atomic rename, so several processes can share one directory.
+ * Reading an entry marks it as recently used, and {@link #trim()} deletes the least recently used entries once the directory grows past its limit.
+ */
+class MergeCache
+{
+    // Bump this whenever Merger.processClass would produce different bytes for the same input.
+    private static final int FORMAT = 2;
+    private static final String LOCK = ".lock";
+    private static final String TEMP = "tmp-";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+    private final long maxSize;
+    private final byte[] salt;
+
+    MergeCache(Path root, long maxSize, AnnotationVersion annotation)
+    {
+        this.root = root;
+        this.maxSize = maxSize;
+        String version = Merger.class.getPackage() == null ? null : Merger.class.getPackage().getImplementationVersion();
+        this.salt = (FORMAT + "|" + version + "|" + (annotation == null ? "none" : annotation.name())).getBytes(StandardCharsets.UTF_8);
+    }
+
+    String key(byte[] client, byte[] server)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e); // Every Java runtime is required to support SHA-256
+        }
+        digest.update(this.salt);
+        update(digest, client);
+        update(digest, server);
+
+        byte[] hash = digest.digest();
+        char[] ret = new char[hash.length * 2];
+        for (int x = 0; x < hash.length; x++)
+        {
+            ret[x * 2] = HEX[(hash[x] >> 4) & 0xF];
+            ret[x * 2 + 1] = HEX[hash[x] & 0xF];
+        }
+        return new String(ret);
+    }
+
+    private static void update(MessageDigest digest, byte[] data)
+    {
+        // Length prefix so the client/server boundary is part of the key
+        digest.update(new byte[] { (byte)(data.length >>> 24), (byte)(data.length >>> 16), (byte)(data.length >>> 8), (byte)data.length });
+        digest.update(data);
+    }
+
+    private Path getPath(String key)
+    {
+        return this.root.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    byte[] get(String key)
+    {
+        Path path = getPath(key);
+        try
+        {
+            byte[] ret = Files.readAllBytes(path);
+            try
+            {
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            catch (IOException e)
+            {
+                // Only used to pick what to evict, not worth failing over
+            }
+            return ret;
+        }
+        catch (NoSuchFileException e)
+        {
+            return null;
+        }
+        catch (IOException e)
+        {
+            return null; // Treat unreadable entries as missing, we'll just merge the class again
+        }
+    }
+
+    void put(String key, byte[] data)
+    {
+        Path path = getPath(key);
+        Path temp = null;
+        try
+        {
+            Files.createDirectories(path.getParent());
+            temp = Files.createTempFile(path.getParent(), TEMP, null);
+            Files.write(temp, data);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+        }
+        catch (IOException e)
+        {
+            // Another process may have written the same entry first, either way the cache is optional.
+        }
+        finally
+        {
+            if (temp != null)
+            {
+                try
+                {
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException e)
+                {
+                    // Cleaned up by a later trim
+                }
+            }
+        }
+    }
+
+    // File locks are held by the whole JVM, so a merge running alongside ours gets an exception instead of null.
+    private static FileLock tryLock(FileChannel channel) throws IOException
+    {
+        try
+        {
+            return channel.tryLock();
+        }
+        catch (OverlappingFileLockException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in its size limit.
+     * Skipped if another process, or another merge in this one, is already trimming the same directory.
+     */
+    void trim() throws IOException
+    {
+        if (!Files.isDirectory(this.root))
+            return;
+
+        try (FileChannel channel = FileChannel.open(this.root.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = tryLock(channel))
+        {
+            if (lock == null)
+                return;
+
+            long staleTemp = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+            List<CacheFile> files = new ArrayList<>();
+            long total = 0;
+
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(this.root, Files::isDirectory))
+            {
+                for (Path dir : dirs)
+                {
+                    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir))
+                    {
+                        for (Path child : children)
+                        {
+                            BasicFileAttributes attrs;
+                            try
+                            {
+                                attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                            }
+                            catch (NoSuchFileException e)
+                            {
+                                continue;
+                            }
+
+                            if (child.getFileName().toString().startsWith(TEMP))
+                            {
+                                // Left behind by a process that died mid write
+                                if (attrs.lastModifiedTime().toMillis() < staleTemp)
+                                    Files.deleteIfExists(child);
+                                continue;
+                            }
+
+                            files.add(new CacheFile(child, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                            total += attrs.size();
+                        }
+                    }
+                }
+            }
+
+            if (total <= this.maxSize)
+                return;
+
+            files.sort(Comparator.comparingLong((CacheFile f) -> f.lastUsed));
+            for (CacheFile file : files)
+            {
+                if (total <= this.maxSize)
+                    break;
+                try
+                {
+                    Files.deleteIfExists(file.path);
+                    total -= file.size;
+                }
+                catch (IOException e)
+                {
+                    // In use by another process on a platform that won't delete open files, try again next time
+                }
+            }
+        }
+    }
+
+    private static class CacheFile
+    {
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        private CacheFile(Path path, long size, long lastUsed)
+        {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps a warmed up JVM around for ConsoleMerger tasks, listening on a loopback port.
+ * The port and a random token are written to a file that only the current user can read, and clients have to send the token back.
+ * Requests run one at a time, with System.out and System.err sent back to the client as the task runs.
+ *
+ * <pre>
+ * request:  UTF token, UTF working directory, int argument count, UTF arguments...
+ * response: int 0 once the request is read, or int -1, byte status, long milliseconds if it is rejected
+ * request:  byte 1 to start the task
+ * response: {int length, bytes}... of output, then int -1, byte status, long milliseconds
+ *
+ * Clients only wait a few seconds for the daemon to pick up their request before running the task themselves,
+ * so the daemon doesn't start a task until the client confirms it is still waiting for it.
+ * </pre>
+ */
+class MergeDaemon
+{
+    private static final int END = -1;
+    private static final byte SUCCESS = 0;
+    private static final byte FAILED = 1;
+    private static final byte REJECTED = 2;
+    private static final byte START = 1;
+    private static final int CONNECT_TIMEOUT = 1000;
+    // How long the daemon waits for a request after accepting a connection. Clients send it straight away, so this only drops connections that never will.
+    private static final int REQUEST_TIMEOUT = 2000;
+    // How long clients wait for the daemon to pick up their request, longer than the above so one dropped connection doesn't turn others away.
+    private static final int REPLY_TIMEOUT = 5000;
+
+    private final File file;
+    private final int idleTimeout;
+    private final String token;
+
+    MergeDaemon(File file, int idleTimeout)
+    {
+        this.file = file.getAbsoluteFile();
+        this.idleTimeout = idleTimeout;
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder buf = new StringBuilder();
+        for (byte b : random)
+            buf.append(String.format("%02x", b));
+        this.token = buf.toString();
+    }
+
+    void serve() throws IOException
+    {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()))
+        {
+            server.setSoTimeout(this.idleTimeout);
+            writePortFile(server.getLocalPort());
+            System.out.println("Listening on port " + server.getLocalPort() + ", stopping after " + (this.idleTimeout / 1000) + "s without requests");
+
+            try
+            {
+                while (true)
+                {
+                    Socket accepted;
+                    try
+                    {
+                        accepted = server.accept();
+                    }
+                    catch (SocketTimeoutException e)
+                    {
+                        System.out.println("No requests for " + (this.idleTimeout / 1000) + "s, stopping");
+                        return;
+                    }
+
+                    try (Socket socket = accepted)
+                    {
+                        // Accepted sockets don't inherit the server's timeout, without one a client that never sends anything would block us forever.
+                        socket.setSoTimeout(REQUEST_TIMEOUT);
+                        handle(socket);
+                    }
+                    catch (IOException e)
+                    {
+                        // A client going away mid request shouldn't take down the daemon
+                        e.printStackTrace();
+                    }
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists(this.file.toPath());
+            }
+        }
+    }
+
+    private void writePortFile(int port) throws IOException
+    {
+        if (this.file.getParentFile() != null && !this.file.getParentFile().exists())
+            this.file.getParentFile().mkdirs();
+
+        File temp = new File(this.file.getPath() + ".tmp");
+        Files.deleteIfExists(temp.toPath());
+        Files.createFile(temp.toPath());
+        try
+        {
+            Files.setPosixFilePermissions(temp.toPath(), PosixFilePermissions.fromString("rw-------"));
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // Not a posix file system, rely on the directory permissions
+        }
+        Files.write(temp.toPath(), (port + " " + this.token).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void handle(Socket socket) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        if (!MessageDigest.isEqual(this.token.getBytes(StandardCharsets.UTF_8), in.readUTF().getBytes(StandardCharsets.UTF_8)))
+            return;
+
+        String dir = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int x = 0; x < args.length; x++)
+            args[x] = in.readUTF();
+
+        // Relative paths are resolved against our own working directory, so requests from anywhere else are run by the client.
+        List<String> argList = Arrays.asList(args);
+        if (!new File(dir).getAbsoluteFile().equals(new File("").getAbsoluteFile()) || argList.contains("--daemon"))
+        {
+            finish(out, REJECTED, 0);
+            return;
+        }
+
+        // The empty frame lets the client know its request was picked up. One that gave up while we were busy has closed the connection instead of answering.
+        out.writeInt(0);
+        out.flush();
+        if (in.read() != START)
+        {
+            System.out.println("SKIPPED " + String.join(" ", args) + " (client went away)");
+            return;
+        }
+        socket.setSoTimeout(0); // The task can take as long as it needs
+
+        long start = System.nanoTime();
+        boolean success = false;
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        try (PrintStream print = new PrintStream(new FrameOutputStream(out), true, "UTF-8"))
+        {
+            System.setOut(print);
+            System.setErr(print);
+            try
+            {
+                success = ConsoleMerger.run(args);
+            }
+            catch (RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                System.setOut(oldOut);
+                System.setErr(oldErr);
+            }
+            print.flush();
+            finish(out, success ? SUCCESS : FAILED, (System.nanoTime() - start) / 1000000);
+        }
+        oldOut.println((success ? "OK     " : "FAILED ") + String.join(" ", args));
+    }
+
+    private static void finish(DataOutputStream out, byte status, long time) throws IOException
+    {
+        out.writeInt(END);
+        out.writeByte(status);
+        out.writeLong(time);
+        out.flush();
+    }
+
+    /**
+     * Runs the task on the daemon described by the port file, copying its output to System.out.
+     * Returns whether the task succeeded, or null if there is no usable daemon and the task should be run locally.
+     */
+    static Boolean forward(File file, String[] args)
+    {
+        String[] pts;
+        try
+        {
+            pts = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        if (pts.length != 2)
+            return null;
+
+        try (Socket socket = new Socket())
+        {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(pts[0])), CONNECT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(pts[1]);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // A daemon that doesn't answer in time is busy or stuck, so run the task ourselves. Once it has started there's no limit.
+            socket.setSoTimeout(REPLY_TIMEOUT);
+            int len = in.readInt();
+            if (len != END)
+            {
+                out.writeByte(START);
+                out.flush();
+            }
+            socket.setSoTimeout(0);
+
+            byte[] buf = new byte[8192];
+            for (; len != END; len = in.readInt())
+            {
+                if (buf.length < len)
+                    buf = new byte[len];
+                in.readFully(buf, 0, len);
+                System.out.write(buf, 0, len);
+            }
+            System.out.flush();
+
+            byte status = in.readByte();
+            long time = in.readLong();
+            if (status == REJECTED)
+                return null;
+            System.out.println("Daemon finished in " + time + "ms");
+            return status == SUCCESS;
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            // Stale port file, a daemon too busy or stuck to pick up the request in time, or the daemon stopped before we got an answer. Output may have been
+            // partially copied in the second case, but running again locally is still the right thing to do.
+            return null;
+        }
+    }
+
+    // Sends everything written to it as length prefixed frames, so output can be mixed with the final status.
+    private static class FrameOutputStream extends OutputStream
+    {
+        private final DataOutputStream out;
+
+        private FrameOutputStream(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return;
+            synchronized (this.out)
+            {
+                this.out.writeInt(len);
+                this.out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            synchronized (this.out)
+            {
+                this.out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            flush(); // The socket is closed by the daemon, after the final status.
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+/**
+ * Told about every class as it is finished, from whichever thread processed it.
+ */
+public interface MergeListener
+{
+    enum Kind { SHARED, CLIENT_ONLY, SERVER_ONLY, STRIPPED }
+
+    /**
+     * @param name  The internal name of the class
+     * @param nanos How long reading and processing the class took
+     */
+    void classProcessed(String name, Kind kind, long nanos);
+}
@@ -0,0 +1,119 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A file next to an output jar recording what it was made from, so a run with the same inputs and options can skip all of the work.
+ * Inputs are hashed from their central directories, the name, CRC and size of every entry, so nothing is inflated.
+ * The size and modification time of the output are recorded too, so a jar changed or replaced since is not mistaken for up to date.
+ */
+class MergeStamp
+{
+    private static final String SUFFIX = ".stamp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static String hash(String options, ZipReader... inputs) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e); // Every Java runtime is required to support SHA-256
+        }
+
+        String version = Merger.class.getPackage() == null ? null : Merger.class.getPackage().getImplementationVersion();
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+        }, digest)))
+        {
+            out.writeUTF(String.valueOf(version));
+            out.writeUTF(options);
+            for (ZipReader input : inputs)
+            {
+                out.writeInt(input.getEntries().size());
+                for (ZipReader.Entry entry : input.getEntries())
+                {
+                    out.writeUTF(entry.getName());
+                    out.writeLong(entry.getCrc());
+                    out.writeLong(entry.getSize());
+                }
+            }
+        }
+
+        byte[] hash = digest.digest();
+        char[] ret = new char[hash.length * 2];
+        for (int x = 0; x < hash.length; x++)
+        {
+            ret[x * 2] = HEX[(hash[x] >> 4) & 0xF];
+            ret[x * 2 + 1] = HEX[hash[x] & 0xF];
+        }
+        return new String(ret);
+    }
+
+    static boolean matches(Path output, String hash) throws IOException
+    {
+        try
+        {
+            String stamp = new String(Files.readAllBytes(getPath(output)), StandardCharsets.UTF_8).trim();
+            return stamp.equals(describe(output, hash));
+        }
+        catch (NoSuchFileException e)
+        {
+            return false;
+        }
+    }
+
+    static void write(Path output, String hash) throws IOException
+    {
+        Files.write(getPath(output), describe(output, hash).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void delete(Path output) throws IOException
+    {
+        Files.deleteIfExists(getPath(output));
+    }
+
+    private static String describe(Path output, String hash) throws IOException
+    {
+        return hash + ' ' + Files.size(output) + ' ' + Files.getLastModifiedTime(output).toMillis();
+    }
+
+    private static Path getPath(Path output)
+    {
+        return output.resolveSibling(output.getFileName() + SUFFIX);
+    }
+}
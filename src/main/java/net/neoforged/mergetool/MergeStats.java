@@ -0,0 +1,155 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time went in a single {@link Merger#process()} or {@link Stripper#process(JarSource, JarSink)} run.
+ * Phase times are summed over every thread, so with several threads they can add up to more than the wall time.
+ */
+public class MergeStats
+{
+    public enum Phase
+    {
+        /** Opening the input jars and reading their central directories */
+        INDEX,
+        /** Inflating entries of the input jars */
+        READ,
+        /** Parsing class files */
+        PARSE,
+        /** Merging or stripping classes and writing them back to bytes */
+        MERGE,
+        /** Deflating entries of the output jar */
+        COMPRESS,
+        /** Writing the output jar */
+        WRITE
+    }
+
+    public enum Count
+    {
+        /** Classes in both jars that had to be merged */
+        MERGED,
+        /** Classes in both jars that were copied from the client as-is, as merging would not change them */
+        UNCHANGED,
+        /** Classes in both jars that were found in the merge cache */
+        CACHED,
+        CLIENT_ONLY,
+        SERVER_ONLY,
+        /** Classes rewritten by the stripper */
+        STRIPPED,
+        /** Classes listed for the stripper that were kept as they were, as they had none of the annotations */
+        UNANNOTATED,
+        /** Entries copied to the output without being inflated */
+        COPIED,
+        /** Uncompressed bytes read from the input jars */
+        BYTES_READ,
+        /** Bytes written to the output jar */
+        BYTES_WRITTEN
+    }
+
+    private final Map<Phase, LongAdder> phases = new EnumMap<>(Phase.class);
+    private final Map<Count, LongAdder> counts = new EnumMap<>(Count.class);
+    private final long start = System.nanoTime();
+    private long wall = -1;
+
+    MergeStats()
+    {
+        for (Phase phase : Phase.values())
+            this.phases.put(phase, new LongAdder());
+        for (Count count : Count.values())
+            this.counts.put(count, new LongAdder());
+    }
+
+    /**
+     * Adds the time since start, as returned by {@link System#nanoTime()}, to the phase.
+     */
+    void time(Phase phase, long start)
+    {
+        this.phases.get(phase).add(System.nanoTime() - start);
+    }
+
+    void add(Count count, long value)
+    {
+        this.counts.get(count).add(value);
+    }
+
+    void finish()
+    {
+        this.wall = System.nanoTime() - this.start;
+    }
+
+    public long getNanos(Phase phase)
+    {
+        return this.phases.get(phase).sum();
+    }
+
+    public long getCount(Count count)
+    {
+        return this.counts.get(count).sum();
+    }
+
+    /**
+     * The wall time of the whole run, or the time so far if it is still running.
+     */
+    public long getWallNanos()
+    {
+        return this.wall == -1 ? System.nanoTime() - this.start : this.wall;
+    }
+
+    public String toJson()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\n  \"wallMs\": ").append(millis(getWallNanos())).append(",\n  \"phasesMs\": {");
+        String sep = "\n";
+        for (Phase phase : Phase.values())
+        {
+            buf.append(sep).append("    \"").append(phase.name().toLowerCase(Locale.ENGLISH)).append("\": ").append(millis(getNanos(phase)));
+            sep = ",\n";
+        }
+        buf.append("\n  },\n  \"counts\": {");
+        sep = "\n";
+        for (Count count : Count.values())
+        {
+            buf.append(sep).append("    \"").append(count.name().toLowerCase(Locale.ENGLISH)).append("\": ").append(getCount(count));
+            sep = ",\n";
+        }
+        return buf.append("\n  }\n}").toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Total: ").append(millis(getWallNanos())).append("ms\n");
+        for (Phase phase : Phase.values())
+            buf.append(String.format(Locale.ROOT, "  %-13s %10sms%n", phase.name().toLowerCase(Locale.ENGLISH), millis(getNanos(phase))));
+        for (Count count : Count.values())
+            buf.append(String.format(Locale.ROOT, "  %-13s %10d%n", count.name().toLowerCase(Locale.ENGLISH), getCount(count)));
+        return buf.toString();
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+}
@@ -19,54 +19,90 @@
 package net.neoforged.mergetool;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.RecordComponentVisitor;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.InnerClassNode;
 import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.MethodNode;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.BiPredicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
 
 @SuppressWarnings("unchecked")
 public class Merger
 {
     private static final boolean DEBUG = false;
+    private static final Map<String, byte[]> RESOURCES = new ConcurrentHashMap<>();
+    static final long ENTRY_TIME = 0x92D6688800L; //Stabilize output as java will use current time if we don't set this, we can't use 0 as older java versions output different jars for values less then 1980
 
-    private final File client;
-    private final File server;
-    private final File merged;
+    private final JarSource client;
+    private final JarSource server;
+    private final JarSink merged;
     private AnnotationVersion annotation = null;
     private boolean annotationInject = true;
-    private FieldName FIELD = new FieldName();
-    private MethodDesc METHOD = new MethodDesc();
-    private HashSet<String> whitelist = new HashSet<>();
+    private static final FieldName FIELD = new FieldName();
+    private static final MethodDesc METHOD = new MethodDesc();
+    private ClassFilter filter = new ClassFilter();
     private boolean copyData = false;
     private boolean keepMeta = false;
+    private int threads = 1;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private ExecutorService executor = null;
+    private long budget = 0;
+    private boolean stamp = false;
+    private boolean upToDate = false;
+    private File cacheDir = null;
+    private long cacheSize = 0;
+    private MergeCache cache = null;
+    private MergeStats stats = new MergeStats();
+    private MergeListener listener = null;
+    private File sideIndex = null;
+    private SideIndex.Builder sides = null;
 
     public Merger(File client, File server, File merged)
+    {
+        this(JarSource.of(client), JarSource.of(server), JarSink.of(merged));
+    }
+
+    public Merger(Path client, Path server, Path merged)
+    {
+        this(JarSource.of(client), JarSource.of(server), JarSink.of(merged));
+    }
+
+    /**
+     * The server jar can also be a bundler, the server jar nested in it is read without extracting it first.
+     */
+    public Merger(JarSource client, JarSource server, JarSink merged)
     {
         this.client = client;
         this.server = server;
@@ -82,7 +118,49 @@ public class Merger
 
     public Merger whitelist(String file)
     {
-        this.whitelist.add(file);
+        this.filter.include(file);
+        return this;
+    }
+
+    /**
+     * Only merges classes matching one of the included patterns, see {@link ClassFilter} for the syntax.
+     * Classes that are filtered out are left out of the output, without being read.
+     */
+    public Merger include(String pattern)
+    {
+        this.filter.include(pattern);
+        return this;
+    }
+
+    /**
+     * Leaves classes matching the pattern out of the output, without reading them.
+     */
+    public Merger exclude(String pattern)
+    {
+        this.filter.exclude(pattern);
+        return this;
+    }
+
+    /**
+     * Limits how much is held in memory at once when merging on several threads, as the uncompressed size of the classes that have been started but not written yet.
+     * Classes are then started in the order they are written, instead of the largest first, and a class larger than the budget is still merged once it is the next one to be written.
+     * A budget of 0, the default, starts every class at once.
+     */
+    public Merger memoryBudget(long bytes)
+    {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Invalid memory budget: " + bytes);
+        this.budget = bytes;
+        return this;
+    }
+
+    /**
+     * Writes every class, field, method and interface found on only one side to the file, in the format read by {@link SideIndex}.
+     * The file can be given straight to {@link Stripper#loadData(File)}, or queried with {@link SideIndex#load(File)}.
+     */
+    public Merger sideIndex(File file)
+    {
+        this.sideIndex = file;
         return this;
     }
 
@@ -110,26 +188,140 @@ public class Merger
         return this;
     }
 
+    /**
+     * Sets the number of worker threads used to merge classes, a value of 0 or less uses one thread per available processor.
+     * Entries are always written in the same order, so the output is identical to a single threaded run.
+     */
+    public Merger threads(int threads)
+    {
+        this.threads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        return this;
+    }
+
+    /**
+     * Sets the deflate level used for entries that have to be compressed, from -1 for the default to 9.
+     * A level of 0 stores every entry without compression, including entries that were compressed in the input jars.
+     */
+    public Merger compression(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Merges classes on the given executor instead of a pool created for this merge, so one pool can be shared between many merges.
+     * The executor is not shut down, and {@link #process()} must not be called from one of its own threads.
+     */
+    public Merger executor(ExecutorService executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Keeps merged classes in the given directory, so classes that were already merged with the same inputs and settings are not merged again.
+     * The directory can be shared between runs and processes, the least recently used classes are deleted once it grows past 512MB.
+     */
+    public Merger cache(File dir)
+    {
+        return cache(dir, 512L * 1024 * 1024);
+    }
+
+    public Merger cache(File dir, long maxSize)
+    {
+        this.cacheDir = dir;
+        this.cacheSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Records the inputs and options next to the output jar, and skips the merge when an existing output was made from the same ones.
+     * Inputs are compared by the names, CRCs and sizes in their central directories, so checking costs almost nothing.
+     * Only used when writing to a file.
+     */
+    public Merger stamp()
+    {
+        this.stamp = true;
+        return this;
+    }
+
+    /**
+     * Whether the last {@link #process()} found the output up to date, and didn't merge anything.
+     */
+    public boolean isUpToDate()
+    {
+        return this.upToDate;
+    }
+
+    /**
+     * Returns how many shared classes the last {@link #process()} copied from the client as-is, because the server had nothing to merge in.
+     */
+    public int getUnchangedCount()
+    {
+        return (int)this.stats.getCount(MergeStats.Count.UNCHANGED);
+    }
+
+    /**
+     * Statistics for the last, or currently running, call to {@link #process()}.
+     */
+    public MergeStats getStats()
+    {
+        return this.stats;
+    }
+
+    /**
+     * Called for every class as it is finished, possibly from several threads at once.
+     */
+    public Merger listener(MergeListener listener)
+    {
+        this.listener = listener;
+        return this;
+    }
+
     public void process() throws IOException
     {
+        this.stats = new MergeStats();
+        this.upToDate = false;
+
+        Path output = this.stamp ? this.merged.getPath() : null;
+        String inputs = null;
+        if (output != null)
+        {
+            try (ZipReader cInJar = this.client.open();
+                 ZipReader sInJar = this.server.open().unbundle())
+            {
+                inputs = MergeStamp.hash(getOptions(), cInJar, sInJar);
+            }
+            if (MergeStamp.matches(output, inputs) && (this.sideIndex == null || this.sideIndex.exists()))
+            {
+                this.upToDate = true;
+                this.stats.finish();
+                return;
+            }
+            MergeStamp.delete(output); // So a merge that fails part way never looks up to date
+        }
+
+        this.sides = this.sideIndex == null ? null : new SideIndex.Builder();
+        this.cache = this.cacheDir == null ? null : new MergeCache(this.cacheDir.toPath(), this.cacheSize, this.annotation);
+        long start = System.nanoTime();
         try (
-            ZipFile cInJar = new ZipFile(this.client);
-            ZipFile sInJar = new ZipFile(this.server);
-            ZipOutputStream outJar = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(this.merged)))
+            ZipReader cInJar = this.client.open();
+            ZipReader sInJar = this.server.open().unbundle();
+            ZipWriter outJar = this.merged.open(this.stats, this.level)
         ) {
+            this.stats.time(MergeStats.Phase.INDEX, start);
             Set<String> added = new HashSet<>();
-            Map<String, ZipEntry> cClasses = getClassEntries(cInJar, outJar, added);
-            Map<String, ZipEntry> sClasses = getClassEntries(sInJar, outJar, null); //Skip data from the server, as it contains libraries.
+            Map<String, ZipReader.Entry> cClasses = getClassEntries(cInJar, outJar, added);
+            Map<String, ZipReader.Entry> sClasses = getClassEntries(sInJar, outJar, null); //Skip data from the server, as it contains libraries.
 
-            for (Entry<String, ZipEntry> entry : cClasses.entrySet())
+            List<EntryTask> tasks = new ArrayList<>();
+            for (Entry<String, ZipReader.Entry> entry : cClasses.entrySet())
             {
                 String name = entry.getKey();
-
-                if (!this.whitelist.isEmpty() && !this.whitelist.contains(name))
-                    continue;
-
-                ZipEntry cEntry = entry.getValue();
-                ZipEntry sEntry = sClasses.get(name);
+                ZipReader.Entry cEntry = entry.getValue();
+                ZipReader.Entry sEntry = sClasses.get(name);
 
                 if (sEntry == null)
                 {
@@ -137,7 +329,9 @@ public class Merger
                     {
                         System.out.println("Copy class c->s : " + name);
                     }
-                    copyClass(cInJar, cEntry, outJar, true);
+                    if (this.sides != null)
+                        this.sides.add(name, SideIndex.SIDE_CLIENT);
+                    tasks.add(task(name, cEntry.getName(), MergeListener.Kind.CLIENT_ONLY, cEntry.getSize(), () -> copyClass(cInJar, cEntry, true, outJar)));
                 }
                 else
                 {
@@ -149,76 +343,191 @@ public class Merger
 
                     sClasses.remove(name);
 
-                    byte[] cData = readEntry(cInJar, entry.getValue());
-                    byte[] sData = readEntry(sInJar, sEntry);
-                    byte[] data = processClass(cData, sData);
-
-                    outJar.putNextEntry(getNewEntry(cEntry.getName()));
-                    outJar.write(data);
+                    tasks.add(task(name, cEntry.getName(), MergeListener.Kind.SHARED, cEntry.getSize() + sEntry.getSize(), () ->
+                    {
+                        byte[] cData = read(cInJar, cEntry);
+                        byte[] sData = read(sInJar, sEntry);
+                        byte[] data = processClass(cData, sData);
+                        if (data == cData && outJar.canCopy(cEntry)) //Unchanged, so we can skip compressing it again.
+                        {
+                            this.stats.add(MergeStats.Count.COPIED, 1);
+                            return cInJar.readRaw(cEntry);
+                        }
+                        return outJar.compress(data);
+                    }));
                 }
             }
 
-            for (Entry<String, ZipEntry> entry : sClasses.entrySet())
+            for (Entry<String, ZipReader.Entry> entry : sClasses.entrySet())
             {
-                if (!this.whitelist.isEmpty() && !this.whitelist.contains(entry.getKey()))
-                    continue;
-
                 if (DEBUG)
                 {
                     System.out.println("Copy class s->c : " + entry.getKey());
                 }
-                copyClass(sInJar, entry.getValue(), outJar, false);
+                ZipReader.Entry sEntry = entry.getValue();
+                if (this.sides != null)
+                    this.sides.add(entry.getKey(), SideIndex.SIDE_SERVER);
+                tasks.add(task(entry.getKey(), sEntry.getName(), MergeListener.Kind.SERVER_ONLY, sEntry.getSize(), () -> copyClass(sInJar, sEntry, false, outJar)));
             }
 
+            EntryTask.runAll(tasks, this.threads, this.executor, this.budget, (x, data) -> outJar.writeRaw(tasks.get(x).name, ENTRY_TIME, data));
+
             if (this.annotation != null && this.annotationInject)
             {
                 for (String cls : this.annotation.getClasses())
                 {
                     byte[] data = getResourceBytes(cls + ".class");
 
-                    outJar.putNextEntry(getNewEntry(cls + ".class"));
-                    outJar.write(data);
+                    outJar.write(cls + ".class", ENTRY_TIME, data);
                 }
             }
 
         }
+
+        if (this.sides != null)
+            this.sides.write(this.sideIndex);
+        if (inputs != null)
+            MergeStamp.write(output, inputs);
+        if (this.cache != null)
+            this.cache.trim();
+        this.stats.finish();
     }
 
-    private ZipEntry getNewEntry(String name)
+    // Everything that changes the output, other than the inputs themselves.
+    private String getOptions()
     {
-        ZipEntry ret = new ZipEntry(name);
-        ret.setTime(0x92D6688800L); //Stabilize output as java will use current time if we don't set this, we can't use 0 as older java versions output different jars for values less then 1980
+        return "annotation=" + (this.annotation == null ? "none" : this.annotation.name()) + ',' + this.annotationInject +
+               " data=" + this.copyData + " meta=" + this.keepMeta + " level=" + this.level +
+               " sides=" + (this.sideIndex == null ? "none" : this.sideIndex.getAbsolutePath()) +
+               " filter=\n" + this.filter;
+    }
+
+    private RawEntry copyClass(ZipReader inJar, ZipReader.Entry entry, boolean isClientOnly, ZipWriter outJar) throws IOException
+    {
+        this.stats.add(isClientOnly ? MergeStats.Count.CLIENT_ONLY : MergeStats.Count.SERVER_ONLY, 1);
+        if (this.annotation == null)
+            return copy(inJar, entry, outJar);
+
+        return outJar.compress(annotateClass(read(inJar, entry), isClientOnly));
+    }
+
+    private RawEntry copy(ZipReader inJar, ZipReader.Entry entry, ZipWriter outJar) throws IOException
+    {
+        if (outJar.canCopy(entry))
+        {
+            this.stats.add(MergeStats.Count.COPIED, 1);
+            return inJar.readRaw(entry);
+        }
+        return outJar.compress(read(inJar, entry));
+    }
+
+    private byte[] read(ZipReader inJar, ZipReader.Entry entry) throws IOException
+    {
+        long start = System.nanoTime();
+        byte[] ret = inJar.read(entry);
+        this.stats.time(MergeStats.Phase.READ, start);
+        this.stats.add(MergeStats.Count.BYTES_READ, ret.length);
         return ret;
     }
 
-    private void copyClass(ZipFile inJar, ZipEntry entry, ZipOutputStream outJar, boolean isClientOnly) throws IOException
+    byte[] annotateClass(byte[] data, boolean isClientOnly)
     {
-        ClassReader reader = new ClassReader(readEntry(inJar, entry));
-        ClassNode classNode = new ClassNode();
+        long start = System.nanoTime();
+        // Seeding the writer with the reader lets ASM copy the constant pool and every method as-is, we only add one annotation.
+        ClassReader reader = new ClassReader(data);
+        ClassWriter writer = new ClassWriter(reader, 0);
+        reader.accept(new SideAnnotator(writer, isClientOnly), 0);
+        byte[] ret = writer.toByteArray();
+        this.stats.time(MergeStats.Phase.MERGE, start);
+        return ret;
+    }
 
-        reader.accept(classNode, 0);
+    /*
+     * Adds the class level side annotation while streaming a class through.
+     * It's added once all of the existing annotations have been visited, the same place a ClassNode would put it.
+     */
+    private class SideAnnotator extends ClassVisitor
+    {
+        private final boolean isClientOnly;
+        private boolean added = false;
 
-        if (this.annotation != null)
-            this.annotation.add(classNode, isClientOnly);
+        private SideAnnotator(ClassVisitor cv, boolean isClientOnly)
+        {
+            super(Opcodes.ASM9, cv);
+            this.isClientOnly = isClientOnly;
+        }
 
-        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        classNode.accept(writer);
+        private void addAnnotation()
+        {
+            if (!this.added)
+            {
+                this.added = true;
+                Merger.this.annotation.add(this.cv, this.isClientOnly);
+            }
+        }
 
-        byte[] data = writer.toByteArray();
+        @Override
+        public void visitNestMember(String nestMember)
+        {
+            addAnnotation();
+            super.visitNestMember(nestMember);
+        }
+
+        @Override
+        public void visitPermittedSubclass(String permittedSubclass)
+        {
+            addAnnotation();
+            super.visitPermittedSubclass(permittedSubclass);
+        }
+
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access)
+        {
+            addAnnotation();
+            super.visitInnerClass(name, outerName, innerName, access);
+        }
+
+        @Override
+        public RecordComponentVisitor visitRecordComponent(String name, String descriptor, String signature)
+        {
+            addAnnotation();
+            return super.visitRecordComponent(name, descriptor, signature);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value)
+        {
+            addAnnotation();
+            return super.visitField(access, name, descriptor, signature, value);
+        }
 
-        outJar.putNextEntry(getNewEntry(entry.getName()));
-        outJar.write(data);
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions)
+        {
+            addAnnotation();
+            return super.visitMethod(access, name, descriptor, signature, exceptions);
+        }
+
+        @Override
+        public void visitEnd()
+        {
+            addAnnotation();
+            super.visitEnd();
+        }
     }
 
-    private Map<String, ZipEntry> getClassEntries(ZipFile inFile, ZipOutputStream output, Set<String> added) throws IOException
+    private Map<String, ZipReader.Entry> getClassEntries(ZipReader inFile, ZipWriter output, Set<String> added) throws IOException
     {
-        Map<String, ZipEntry> ret = new Hashtable<String, ZipEntry>();
-        for (ZipEntry entry : Collections.list((Enumeration<ZipEntry>)inFile.entries()))
+        // Keeps the order of the jar, so the output order no longer depends on hashing.
+        Map<String, ZipReader.Entry> ret = new LinkedHashMap<>();
+        for (ZipReader.Entry entry : inFile.getEntries())
         {
             String entryName = entry.getName();
             if (!entry.isDirectory() && entryName.endsWith(".class") && !entryName.startsWith("."))
             {
-                ret.put(entryName.replace(".class", ""), entry);
+                String name = entryName.substring(0, entryName.length() - 6);
+                if (this.filter.matches(name)) // Filtered out classes are dropped here, before anything is read
+                    ret.put(name, entry);
             }
             else if (this.copyData && added != null && !added.contains(entryName))
             {
@@ -233,8 +542,7 @@ public class Merger
                 }
                 else
                 {
-                    output.putNextEntry(getNewEntry(entryName));
-                    output.write(readEntry(inFile, entry));
+                    output.writeRaw(entryName, ENTRY_TIME, copy(inFile, entry, output));
                     added.add(entryName);
                 }
             }
@@ -242,11 +550,6 @@ public class Merger
         return ret;
     }
 
-    private byte[] readEntry(ZipFile inFile, ZipEntry entry) throws IOException
-    {
-        return readFully(inFile.getInputStream(entry));
-    }
-
     private byte[] readFully(InputStream stream) throws IOException
     {
         byte[] data = new byte[4096];
@@ -264,46 +567,320 @@ public class Merger
         return buf.toByteArray();
     }
 
-    private byte[] processClass(byte[] cIn, byte[] sIn)
+    byte[] processClass(byte[] cIn, byte[] sIn)
     {
-        ClassNode cClassNode = getClassNode(cIn);
+        long start = System.nanoTime();
+        ClassShape cShape = ClassShape.of(cIn);
+        ClassShape sShape = Arrays.equals(cIn, sIn) ? null : ClassShape.of(sIn);
+        boolean unchanged = cShape.isSorted() && (sShape == null || cShape.matches(sShape));
+        this.stats.time(MergeStats.Phase.PARSE, start);
+        if (this.sides != null && sShape != null)
+            cShape.addSides(sShape, this.sides); // From the shapes, so cached classes are indexed too
+        if (unchanged)
+        {
+            this.stats.add(MergeStats.Count.UNCHANGED, 1);
+            return cIn;
+        }
+
+        String key = null;
+        if (this.cache != null)
+        {
+            key = this.cache.key(cIn, sIn);
+            byte[] cached = this.cache.get(key);
+            if (cached != null)
+            {
+                this.stats.add(MergeStats.Count.CACHED, 1);
+                return cached;
+            }
+        }
+
+        start = System.nanoTime();
+        ClassReader cReader = new ClassReader(cIn);
+        ClassNode cClassNode = new ClassNode();
+        cReader.accept(cClassNode, 0);
         ClassNode sClassNode = getClassNode(sIn);
+        this.stats.time(MergeStats.Phase.PARSE, start);
 
-        processFields(cClassNode, sClassNode);
-        processMethods(cClassNode, sClassNode);
+        start = System.nanoTime();
+        MergedClass merged = new MergedClass(cClassNode, sClassNode, this.annotation != null);
+        processFields(cClassNode, sClassNode, this::annotate);
+        processMethods(cClassNode, sClassNode, this::annotate);
         processInners(cClassNode, sClassNode);
         processInterfaces(cClassNode, sClassNode);
 
-        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        cClassNode.accept(writer);
-        return writer.toByteArray();
+        // Merging only adds members and annotations, so no bytecode changes and the maxs read from both jars are still right.
+        ClassWriter writer = new ClassWriter(cReader, 0);
+        cReader.accept(merged.writer(writer), 0);
+        byte[] data = writer.toByteArray();
+        this.stats.time(MergeStats.Phase.MERGE, start);
+        this.stats.add(MergeStats.Count.MERGED, 1);
+
+        if (key != null)
+            this.cache.put(key, data);
+
+        return data;
+    }
+
+    /*
+     * Streams the client class into a writer seeded with its reader, splicing in what the merge added. The constant pool is copied
+     * instead of rebuilt, and members both sides share go straight to the writer, which lets ASM copy their methods without decoding them.
+     * Members only one side has are written from the merged ClassNode, as they are either annotated or come from the server.
+     * Has to be created before the merge, to remember the client class as it was read.
+     */
+    private static class MergedClass extends ClassVisitor
+    {
+        private final ClassNode merged;
+        private final Members<FieldNode> fields;
+        private final Members<MethodNode> methods;
+        private final int visible;
+        private final int invisible;
+        private final int inners;
+
+        private MergedClass(ClassNode cClass, ClassNode sClass, boolean annotated)
+        {
+            super(Opcodes.ASM9);
+            this.merged = cClass;
+            Set<String> sFields = new HashSet<>();
+            for (FieldNode field : sClass.fields)
+                sFields.add(field.name);
+            Set<String> sMethods = new HashSet<>();
+            for (MethodNode method : sClass.methods)
+                sMethods.add(method.name + method.desc);
+            // Without annotations, members only the client has are not changed either
+            this.fields = new Members<>(cClass.fields, f -> !annotated || sFields.contains(f.name));
+            this.methods = new Members<>(cClass.methods, m -> !annotated || sMethods.contains(m.name + m.desc));
+            this.visible = cClass.visibleAnnotations == null ? 0 : cClass.visibleAnnotations.size();
+            this.invisible = cClass.invisibleAnnotations == null ? 0 : cClass.invisibleAnnotations.size();
+            this.inners = cClass.innerClasses.size();
+        }
+
+        private ClassVisitor writer(ClassVisitor cv)
+        {
+            this.cv = cv;
+            return this;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+        {
+            super.visit(version, access, name, signature, superName, this.merged.interfaces.toArray(new String[0]));
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value)
+        {
+            FieldNode field = this.fields.next(this.merged.fields, f -> f.accept(this.cv));
+            return field == null ? null : super.visitField(access, name, descriptor, signature, value);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions)
+        {
+            MethodNode method = this.methods.next(this.merged.methods, m -> m.accept(this.cv));
+            return method == null ? null : super.visitMethod(access, name, descriptor, signature, exceptions);
+        }
+
+        @Override
+        public void visitEnd()
+        {
+            this.fields.finish(this.merged.fields, f -> f.accept(this.cv));
+            this.methods.finish(this.merged.methods, m -> m.accept(this.cv));
+
+            // The merge only ever appends these. ClassWriter doesn't mind them coming after the members.
+            if (this.merged.visibleAnnotations != null)
+            {
+                for (AnnotationNode node : this.merged.visibleAnnotations.subList(this.visible, this.merged.visibleAnnotations.size()))
+                    node.accept(super.visitAnnotation(node.desc, true));
+            }
+            if (this.merged.invisibleAnnotations != null)
+            {
+                for (AnnotationNode node : this.merged.invisibleAnnotations.subList(this.invisible, this.merged.invisibleAnnotations.size()))
+                    node.accept(super.visitAnnotation(node.desc, false));
+            }
+            for (InnerClassNode node : this.merged.innerClasses.subList(this.inners, this.merged.innerClasses.size()))
+                super.visitInnerClass(node.name, node.outerName, node.innerName, node.access);
+
+            super.visitEnd();
+        }
     }
 
-    private boolean innerMatches(InnerClassNode o, InnerClassNode o2)
+    /*
+     * Lines the members of the client class, in the order the reader visits them, up with the merged list.
+     * The merge keeps the client order, so the merged members between two client ones are written when the reader gets to the second.
+     */
+    private static class Members<T>
     {
-        return equals(o.innerName, o2.innerName) &&
-               equals(o.name,      o2.name) &&
-               equals(o.outerName, o2.outerName);
+        private final List<T> client;
+        private final Set<T> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        private int next = 0;
+        private int written = 0;
+
+        private Members(List<T> client, Predicate<T> isShared)
+        {
+            this.client = new ArrayList<>(client);
+            for (T member : client)
+            {
+                if (isShared.test(member))
+                    this.shared.add(member);
+            }
+        }
+
+        /*
+         * Writes the merged members up to the client member being visited, and returns it if it should be streamed to the writer.
+         * Returns null if it was changed by the merge, in which case it is written from the merged list instead.
+         */
+        private T next(List<T> merged, Consumer<T> write)
+        {
+            T member = this.client.get(this.next++);
+            if (!this.shared.contains(member))
+                return null;
+            while (merged.get(this.written) != member)
+                write.accept(merged.get(this.written++));
+            this.written++;
+            return member;
+        }
+
+        private void finish(List<T> merged, Consumer<T> write)
+        {
+            while (this.written < merged.size())
+                write.accept(merged.get(this.written++));
+        }
     }
 
-    private boolean equals(Object o1, Object o2)
+    /*
+     * The members, interfaces and inner classes of a class, which is everything processClass looks at.
+     * If both sides have the same shape, in the same order, the merge would not change the client class.
+     */
+    private static class ClassShape extends ClassVisitor
     {
-        return o1 == null ? o2 == null : o2 == null ? false : o1.equals(o2);
+        private String name;
+        private String[] interfaces;
+        private final List<String> fields = new ArrayList<>();
+        private final List<String> fieldDescs = new ArrayList<>();
+        private final List<String> methods = new ArrayList<>();
+        private final List<String> inners = new ArrayList<>();
+
+        private ClassShape()
+        {
+            super(Opcodes.ASM9);
+        }
+
+        private static ClassShape of(byte[] data)
+        {
+            ClassShape ret = new ClassShape();
+            new ClassReader(data).accept(ret, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            return ret;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+        {
+            this.name = name;
+            this.interfaces = interfaces == null ? new String[0] : interfaces;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value)
+        {
+            this.fields.add(name);
+            this.fieldDescs.add(descriptor);
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions)
+        {
+            this.methods.add(name + descriptor);
+            return null;
+        }
+
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access)
+        {
+            this.inners.add(name + ' ' + outerName + ' ' + innerName);
+        }
+
+        // processInterfaces sorts the interfaces, so a class with unsorted ones would always be rewritten.
+        private boolean isSorted()
+        {
+            for (int x = 1; x < this.interfaces.length; x++)
+            {
+                if (this.interfaces[x - 1].compareTo(this.interfaces[x]) > 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /*
+         * Adds what only one side has to the index, with the same keys the merge uses: fields by name, methods by name and descriptor.
+         */
+        private void addSides(ClassShape server, SideIndex.Builder sides)
+        {
+            addOnly(server, sides, SideIndex.SIDE_CLIENT);
+            server.addOnly(this, sides, SideIndex.SIDE_SERVER);
+        }
+
+        private void addOnly(ClassShape other, SideIndex.Builder sides, byte side)
+        {
+            Set<String> otherFields = new HashSet<>(other.fields);
+            for (int x = 0; x < this.fields.size(); x++)
+            {
+                if (!otherFields.contains(this.fields.get(x)))
+                    sides.add(this.name, this.fields.get(x), this.fieldDescs.get(x), side);
+            }
+            Set<String> otherMethods = new HashSet<>(other.methods);
+            for (String method : this.methods)
+            {
+                if (!otherMethods.contains(method))
+                {
+                    int desc = method.indexOf('(');
+                    sides.add(this.name, method.substring(0, desc), method.substring(desc), side);
+                }
+            }
+            Set<String> otherInterfaces = new HashSet<>(Arrays.asList(other.interfaces));
+            for (String intf : this.interfaces)
+            {
+                if (!otherInterfaces.contains(intf))
+                    sides.add(this.name, intf, "", side);
+            }
+        }
+
+        private boolean matches(ClassShape other)
+        {
+            return Arrays.equals(this.interfaces, other.interfaces) &&
+                   this.fields.equals(other.fields) &&
+                   this.methods.equals(other.methods) &&
+                   this.inners.equals(other.inners);
+        }
     }
 
-    private void processInners(ClassNode cClass, ClassNode sClass)
+    private static List<String> innerKey(InnerClassNode node)
+    {
+        return Arrays.asList(node.name, node.outerName, node.innerName);
+    }
+
+    static void processInners(ClassNode cClass, ClassNode sClass)
     {
         List<InnerClassNode> cIners = cClass.innerClasses;
         List<InnerClassNode> sIners = sClass.innerClasses;
 
-        for (InnerClassNode n : cIners)
+        Set<List<String>> sKeys = new HashSet<>();
+        for (InnerClassNode n : sIners)
+            sKeys.add(innerKey(n));
+        for (int x = 0, size = cIners.size(); x < size; x++)
         {
-            if (!sIners.stream().anyMatch(e -> innerMatches(e, n)))
+            InnerClassNode n = cIners.get(x);
+            if (sKeys.add(innerKey(n)))
                 sIners.add(n);
         }
-        for (InnerClassNode n : sIners)
+
+        Set<List<String>> cKeys = new HashSet<>();
+        for (InnerClassNode n : cIners)
+            cKeys.add(innerKey(n));
+        for (int x = 0, size = sIners.size(); x < size; x++)
         {
-            if (!cIners.stream().anyMatch(e -> innerMatches(e, n)))
+            InnerClassNode n = sIners.get(x);
+            if (cKeys.add(innerKey(n)))
                 cIners.add(n);
         }
     }
@@ -314,10 +891,12 @@ public class Merger
         List<String> sIntfs = sClass.interfaces;
         List<String> cOnly = new ArrayList<>();
         List<String> sOnly = new ArrayList<>();
+        Set<String> cKeys = new HashSet<>(cIntfs);
+        Set<String> sKeys = new HashSet<>(sIntfs);
 
         for (String n : cIntfs)
         {
-            if (!sIntfs.contains(n))
+            if (sKeys.add(n))
             {
                 sIntfs.add(n);
                 cOnly.add(n);
@@ -325,7 +904,7 @@ public class Merger
         }
         for (String n : sIntfs)
         {
-            if (!cIntfs.contains(n))
+            if (cKeys.add(n))
             {
                 cIntfs.add(n);
                 sOnly.add(n);
@@ -349,39 +928,65 @@ public class Merger
         return classNode;
     }
 
-    private static <T, U> BiPredicate<? super U, ? super U> curry(Function<? super U, ? extends T> function, BiPredicate<? super T, ? super T> primary) {
-        return (a,b) -> primary.test(function.apply(a), function.apply(b));
+    /*
+     * Lines up the fields of both classes, leaving both with the merged list. Members only one side has are passed through the annotator.
+     * Static so it can't depend on the state of a merge, DistributionMerger uses it to fold any number of classes together.
+     */
+    static void processFields(ClassNode cClass, ClassNode sClass, MemberAnnotator<FieldNode> annotator)
+    {
+        merge(cClass.name, sClass.name, cClass.fields, sClass.fields, annotator, FIELD, FIELD);
+    }
+
+    static void processMethods(ClassNode cClass, ClassNode sClass, MemberAnnotator<MethodNode> annotator)
+    {
+        merge(cClass.name, sClass.name, cClass.methods, sClass.methods, annotator, METHOD, METHOD.byLine());
     }
 
-    private void processFields(ClassNode cClass, ClassNode sClass)
+    /*
+     * The fields of every class lined up in one pass, see align. Shared fields are taken from the first class that has them.
+     */
+    static List<FieldNode> alignFields(List<ClassNode> classes)
     {
-        merge(cClass.name, sClass.name, cClass.fields, sClass.fields, curry(FIELD, Objects::equals), FIELD, FIELD, FIELD);
+        List<List<FieldNode>> lists = new ArrayList<>();
+        for (ClassNode cls : classes)
+            lists.add(cls.fields);
+        return align(lists, FIELD, FIELD);
     }
 
-    private void processMethods(ClassNode cClass, ClassNode sClass)
+    static List<MethodNode> alignMethods(List<ClassNode> classes)
     {
-        merge(cClass.name, sClass.name, cClass.methods, sClass.methods, curry(METHOD, Objects::equals), METHOD, METHOD, METHOD);
+        List<List<MethodNode>> lists = new ArrayList<>();
+        for (ClassNode cls : classes)
+            lists.add(cls.methods);
+        return align(lists, METHOD, METHOD.byLine());
     }
 
-    private interface MemberAnnotator<T>
+    private FieldNode annotate(FieldNode field, boolean isClient)
+    {
+        if (this.annotation != null)
+            this.annotation.add(field, isClient);
+        return field;
+    }
+
+    private MethodNode annotate(MethodNode method, boolean isClient)
+    {
+        if (this.annotation != null)
+            this.annotation.add(method, isClient);
+        return method;
+    }
+
+    interface MemberAnnotator<T>
     {
         T process(T member, boolean isClient);
     }
 
-    private class FieldName implements Function<FieldNode, String>, MemberAnnotator<FieldNode>, Comparator<FieldNode>
+    private static class FieldName implements Function<FieldNode, String>, Comparator<FieldNode>
     {
         public String apply(FieldNode in)
         {
             return in == null ? "null" : in.name;
         }
 
-        public FieldNode process(FieldNode field, boolean isClient)
-        {
-            if (Merger.this.annotation != null)
-                Merger.this.annotation.add(field, isClient);
-            return field;
-        }
-
         @Override
         public int compare(FieldNode a, FieldNode b)
         {
@@ -392,25 +997,17 @@ public class Merger
         }
     }
 
-    private class MethodDesc implements Function<MethodNode, String>, MemberAnnotator<MethodNode>, Comparator<MethodNode>
+    private static class MethodDesc implements Function<MethodNode, String>
     {
         public String apply(MethodNode node)
         {
             return node == null ? "null" : node.name + node.desc;
         }
 
-        public MethodNode process(MethodNode node, boolean isClient)
-        {
-            if (Merger.this.annotation != null)
-                Merger.this.annotation.add(node, isClient);
-            return node;
-        }
-
         private int findLine(MethodNode member)
         {
-            for (int x = 0; x < member.instructions.size(); x++)
+            for (AbstractInsnNode insn = member.instructions.getFirst(); insn != null; insn = insn.getNext())
             {
-                AbstractInsnNode insn = member.instructions.get(x);
                 if (insn instanceof LineNumberNode)
                 {
                     return ((LineNumberNode)insn).line;
@@ -419,94 +1016,213 @@ public class Merger
             return Integer.MAX_VALUE;
         }
 
-        @Override
-        public int compare(MethodNode a, MethodNode b)
+        /*
+         * Orders methods by their first line number. The same method can be compared many times while
+         * it waits for its turn in the merge, so the line numbers are looked up once per merge.
+         */
+        public Comparator<MethodNode> byLine()
         {
-            if (a == b) return 0;
-            if (a == null) return 1;
-            if (b == null) return -1;
-            return findLine(a) - findLine(b);
+            Map<MethodNode, Integer> lines = new IdentityHashMap<>();
+            return (a, b) ->
+            {
+                if (a == b) return 0;
+                if (a == null) return 1;
+                if (b == null) return -1;
+                return lines.computeIfAbsent(a, this::findLine) - lines.computeIfAbsent(b, this::findLine);
+            };
         }
     }
 
-    private <T> void merge(String cName, String sName, List<T> client, List<T> server, BiPredicate<? super T, ? super T> eq,
+    /*
+     * Walks both member lists in step, taking shared members once and slotting in the members only one side has.
+     * Every member is keyed once up front, and the result is built in one pass instead of inserting into the input lists.
+     * When both sides have an extra member at the same spot, compare decides which goes first. Both lists end up as the merged list.
+     */
+    private static <T> void merge(String cName, String sName, List<T> client, List<T> server,
             MemberAnnotator<T> annotator, Function<T, String> toString, Comparator<T> compare)
     {
-        // adding null to the end to not handle the index overflow in a special way
-        client.add(null);
-        server.add(null);
-        List<T> common = new ArrayList<>();
-        for(T ct : client)
+        // A null key at the end marks the end of each list, so running off the end is not a special case
+        String[] cKeys = keys(client, toString);
+        String[] sKeys = keys(server, toString);
+
+        Set<String> sKeySet = new HashSet<>(Arrays.asList(sKeys));
+        List<String> common = new ArrayList<>();
+        for (String key : cKeys)
         {
-            for (T st : server)
-            {
-                if (eq.test(ct, st))
-                {
-                    common.add(ct);
-                    break;
-                }
-            }
+            if (sKeySet.contains(key))
+                common.add(key);
         }
 
-        int i = 0, mi = 0;
-        for(; i < client.size(); i++)
+        List<T> merged = new ArrayList<>(client.size() + server.size());
+        int ci = 0, si = 0, mi = 0;
+        while (ci < cKeys.length)
         {
-            T ct = client.get(i);
-            T st = server.get(i);
-            T mt = common.get(mi);
+            if (mi >= common.size())
+                throw new IllegalStateException("merged list is in bad state: " + ci + " " + si + " " + mi);
 
-            if (eq.test(ct, st))
+            String ck = cKeys[ci];
+            String sk = sKeys[si];
+            String mk = common.get(mi);
+            T ct = ck == null ? null : client.get(ci);
+            T st = sk == null ? null : server.get(si);
+            boolean clientFirst;
+
+            if (Objects.equals(ck, sk))
             {
                 mi++;
-                if (!eq.test(ct, mt))
-                    throw new IllegalStateException("merged list is in bad state: " + toString.apply(ct) + " " + toString.apply(st) + " " + toString.apply(mt));
+                if (!Objects.equals(ck, mk))
+                    throw new IllegalStateException("merged list is in bad state: " + toString.apply(ct) + " " + toString.apply(st) + " " + mk);
                 if (DEBUG)
-                    System.out.printf("%d/%d %d/%d Both Shared  : %s %s\n", i, client.size(), mi, common.size(), sName, toString.apply(st));
+                    System.out.printf("%d/%d %d/%d Both Shared  : %s %s\n", merged.size(), cKeys.length, mi, common.size(), sName, toString.apply(st));
 
+                if (ck != null)
+                    merged.add(ct);
+                ci++;
+                si++;
+                continue;
             }
-            else if(eq.test(st, mt))
+            else if (Objects.equals(sk, mk))
+                clientFirst = true;
+            else if (Objects.equals(ck, mk))
+                clientFirst = false;
+            else // Both server and client add a new method before we get to the next common method... Lets try and prioritize one.
+                clientFirst = compare.compare(ct, st) <= 0; //Technically this should be <0 and we special case when they can't agree who goes first.. but for now just push the client's first.
+
+            if (clientFirst)
             {
-                server.add(i, annotator.process(ct, true));
+                if (ck == null)
+                    throw new IllegalStateException("merged list is in bad state: " + ci + " " + si + " " + mi);
+                merged.add(annotator.process(ct, true));
+                ci++;
                 if (DEBUG)
-                    System.out.printf("%d/%d %d/%d Server *add* : %s %s\n", i, client.size(), mi, common.size(), sName, toString.apply(ct));
+                    System.out.printf("%d/%d %d/%d Server *add* : %s %s\n", merged.size(), cKeys.length, mi, common.size(), sName, toString.apply(ct));
             }
-            else if (eq.test(ct, mt))
+            else
             {
-                client.add(i, annotator.process(st, false));
+                if (sk == null)
+                    throw new IllegalStateException("merged list is in bad state: " + ci + " " + si + " " + mi);
+                merged.add(annotator.process(st, false));
+                si++;
                 if (DEBUG)
-                    System.out.printf("%d/%d %d/%d Client *add* : %s %s\n", i, client.size(), mi, common.size(), cName, toString.apply(st));
+                    System.out.printf("%d/%d %d/%d Client *add* : %s %s\n", merged.size(), cKeys.length, mi, common.size(), cName, toString.apply(st));
             }
-            else // Both server and client add a new method before we get to the next common method... Lets try and prioritize one.
+        }
+        if (si < sKeys.length || mi < common.size())
+        {
+            throw new IllegalStateException("merged list is in bad state: " + ci + " " + mi);
+        }
+
+        client.clear();
+        client.addAll(merged);
+        server.clear();
+        server.addAll(merged);
+    }
+
+    /*
+     * Lines up any number of member lists at once, the same way merge lines up two. Every list has a cursor, and a member is
+     * taken once it is next in every list that has it. When several can be taken, compare decides, then the order of the lists.
+     * Folding lists in two at a time instead can reorder members before a later list is seen, and then fail to line that list up.
+     * Lists that disagree on the order of their shared members can't all be kept in order, so the first list with members left wins.
+     */
+    static <T> List<T> align(List<List<T>> lists, Function<T, String> toString, Comparator<T> compare)
+    {
+        int count = lists.size();
+        String[][] keys = new String[count][];
+        Map<String, Integer> holders = new HashMap<>();
+        for (int x = 0; x < count; x++)
+        {
+            List<T> list = lists.get(x);
+            keys[x] = new String[list.size()];
+            for (int y = 0; y < list.size(); y++)
             {
-                int diff = compare.compare(ct,  st);
-                if  (diff > 0)
-                {
-                    client.add(i, annotator.process(st, false));
-                    if (DEBUG)
-                        System.out.printf("%d/%d %d/%d Client *add* : %s %s\n", i, client.size(), mi, common.size(), cName, toString.apply(st));
-                }
-                else /* if (diff < 0) */ //Technically this should be <0 and we special case when they can't agree who goes first.. but for now just push the client's first.
+                keys[x][y] = toString.apply(list.get(y));
+                holders.merge(keys[x][y], 1, Integer::sum);
+            }
+        }
+
+        List<T> ret = new ArrayList<>(holders.size());
+        Set<String> taken = new HashSet<>();
+        Map<String, Integer> heads = new HashMap<>();
+        int[] pos = new int[count];
+        while (true)
+        {
+            heads.clear();
+            for (int x = 0; x < count; x++)
+            {
+                while (pos[x] < keys[x].length && taken.contains(keys[x][pos[x]]))
+                    pos[x]++;
+                if (pos[x] < keys[x].length)
+                    heads.merge(keys[x][pos[x]], 1, Integer::sum);
+            }
+            if (heads.isEmpty())
+                break;
+
+            int best = -1;
+            for (int x = 0; x < count; x++)
+            {
+                if (pos[x] == keys[x].length || !heads.get(keys[x][pos[x]]).equals(holders.get(keys[x][pos[x]])))
+                    continue; // Still waiting on members before it in another list
+                if (best == -1 || compare.compare(lists.get(x).get(pos[x]), lists.get(best).get(pos[best])) < 0)
+                    best = x;
+            }
+            if (best == -1)
+            {
+                best = 0;
+                while (pos[best] == keys[best].length)
+                    best++;
+                if (DEBUG)
+                    System.out.println("Lists disagree on the order of " + keys[best][pos[best]]);
+            }
+
+            String key = keys[best][pos[best]];
+            for (int x = 0; x < best; x++)
+            {
+                if (pos[x] < keys[x].length && key.equals(keys[x][pos[x]]))
                 {
-                    server.add(i, annotator.process(ct, true));
-                    if (DEBUG)
-                        System.out.printf("%d/%d %d/%d Server *add* : %s %s\n", i, client.size(), mi, common.size(), sName, toString.apply(ct));
+                    best = x; // Shared members come from the first list
+                    break;
                 }
             }
+            ret.add(lists.get(best).get(pos[best]));
+            taken.add(key);
         }
-        if (i < server.size() || mi < common.size() || (client.size() != server.size()))
+        return ret;
+    }
+
+    private static <T> String[] keys(List<T> members, Function<T, String> toString)
+    {
+        String[] ret = new String[members.size() + 1];
+        for (int x = 0; x < members.size(); x++)
+            ret[x] = toString.apply(members.get(x));
+        return ret;
+    }
+
+    private EntryTask task(String name, String entry, MergeListener.Kind kind, long weight, EntryTask.Job job)
+    {
+        if (this.listener == null)
+            return new EntryTask(entry, weight, job);
+
+        return new EntryTask(entry, weight, () ->
         {
-            throw new IllegalStateException("merged list is in bad state: " + i + " " + mi);
-        }
-        // removing the null
-        client.remove(client.size() - 1);
-        server.remove(server.size() - 1);
+            long start = System.nanoTime();
+            RawEntry ret = job.run();
+            this.listener.classProcessed(name, kind, System.nanoTime() - start);
+            return ret;
+        });
     }
 
     private byte[] getResourceBytes(String path) throws IOException
     {
-        try (InputStream stream = Merger.class.getResourceAsStream("/" + path))
+        // Cached, so running many merges in one JVM only reads the annotation classes once.
+        byte[] ret = RESOURCES.get(path);
+        if (ret == null)
         {
-            return readFully(stream);
+            try (InputStream stream = Merger.class.getResourceAsStream("/" + path))
+            {
+                ret = readFully(stream);
+            }
+            RESOURCES.put(path, ret);
         }
+        return ret;
     }
 }
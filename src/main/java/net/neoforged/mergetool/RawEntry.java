@@ -0,0 +1,45 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The still compressed data of a zip entry, along with everything needed to write it to another zip without inflating it.
+ */
+class RawEntry
+{
+    final int method;
+    final long crc;
+    final long size;
+    final ByteBuffer data;
+
+    RawEntry(int method, long crc, long size, ByteBuffer data)
+    {
+        this.method = method;
+        this.crc = crc;
+        this.size = size;
+        this.data = data;
+    }
+
+    long getCompressedSize()
+    {
+        return this.data.remaining();
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A compiled, memory mapped list of classes and members, each with the side it belongs to.
+ * The {@link Stripper} loads these as its class and member lists, and {@link Merger#sideIndex(File)} writes one with everything it found on only one side.
+ * Classes are found by a binary search over a sorted table, and members are only decoded for classes that are looked up,
+ * so loading a file costs the same no matter how much it contains.
+ *
+ * <pre>
+ * int    magic 'MTSD'
+ * int    version
+ * int    class count
+ * {int name offset, int members offset}[class count], sorted by the UTF-8 bytes of the name
+ * members: byte side, int count, {string name, string desc, byte side}[count]
+ * string: unsigned short length, UTF-8 bytes
+ * side: 0 both or unknown, 1 client, 2 server
+ * </pre>
+ *
+ * Interfaces only one side implements are listed as members with the interface as the name and an empty descriptor.
+ */
+public class SideIndex
+{
+    public enum Side { BOTH, CLIENT, SERVER }
+
+    static final int MAGIC = 0x4D545344; // MTSD
+    static final int VERSION = 1;
+    static final byte SIDE_NONE = 0;
+    static final byte SIDE_CLIENT = 1;
+    static final byte SIDE_SERVER = 2;
+
+    private static final int HEADER = 12;
+
+    private final ByteBuffer data;
+    private final int count;
+
+    private SideIndex(ByteBuffer data, File file) throws IOException
+    {
+        this.data = data;
+        if (data.capacity() < HEADER || data.getInt(0) != MAGIC)
+            throw new IOException("Not a compiled data file: " + file);
+        if (data.getInt(4) != VERSION)
+            throw new IOException("Unsupported compiled data version " + data.getInt(4) + ": " + file);
+        this.count = data.getInt(8);
+        if (this.count < 0 || HEADER + this.count * 8L > data.capacity())
+            throw new IOException("Invalid compiled data file: " + file);
+    }
+
+    static boolean isCompiled(File file) throws IOException
+    {
+        try (InputStream in = Files.newInputStream(file.toPath()))
+        {
+            byte[] magic = new byte[4];
+            int len = 0;
+            while (len < magic.length)
+            {
+                int read = in.read(magic, len, magic.length - len);
+                if (read == -1)
+                    return false;
+                len += read;
+            }
+            return ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+    }
+
+    public static SideIndex load(File file) throws IOException
+    {
+        // The mapping stays valid after the channel is closed.
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            return new SideIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+        }
+    }
+
+    /**
+     * Returns the members listed for the class, as name -> descriptors, or null if the class isn't listed.
+     */
+    Map<String, Set<String>> getMembers(String cls)
+    {
+        int members = find(cls.getBytes(StandardCharsets.UTF_8));
+        if (members == -1)
+            return null;
+
+        int pos = members + 1; // Side
+        int count = this.data.getInt(pos);
+        pos += 4;
+
+        Map<String, Set<String>> ret = new HashMap<>();
+        for (int x = 0; x < count; x++)
+        {
+            String name = readString(pos);
+            pos += 2 + (this.data.getShort(pos) & 0xFFFF);
+            String desc = readString(pos);
+            pos += 2 + (this.data.getShort(pos) & 0xFFFF);
+            pos++; // Side
+            ret.computeIfAbsent(name, k -> new HashSet<>()).add(desc);
+        }
+        return ret;
+    }
+
+    List<String> getClasses()
+    {
+        List<String> ret = new ArrayList<>(this.count);
+        for (int x = 0; x < this.count; x++)
+            ret.add(readString(this.data.getInt(HEADER + x * 8)));
+        return ret;
+    }
+
+    /**
+     * The side the class is only on, or BOTH if it isn't listed or is on both sides.
+     */
+    public Side getSide(String cls)
+    {
+        int members = find(cls.getBytes(StandardCharsets.UTF_8));
+        return members == -1 ? Side.BOTH : side(this.data.get(members));
+    }
+
+    /**
+     * The side the field or method is only on, or the side of its class if the member isn't listed.
+     * Use an empty descriptor to look up an interface the class implements.
+     */
+    public Side getSide(String cls, String name, String desc)
+    {
+        int members = find(cls.getBytes(StandardCharsets.UTF_8));
+        if (members == -1)
+            return Side.BOTH;
+
+        // Only members that are on one side are listed, so this is a short walk.
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] descBytes = desc.getBytes(StandardCharsets.UTF_8);
+        int pos = members + 1;
+        int count = this.data.getInt(pos);
+        pos += 4;
+        for (int x = 0; x < count; x++)
+        {
+            boolean match = compare(pos, nameBytes) == 0;
+            pos += 2 + (this.data.getShort(pos) & 0xFFFF);
+            match &= compare(pos, descBytes) == 0;
+            pos += 2 + (this.data.getShort(pos) & 0xFFFF);
+            if (match)
+                return side(this.data.get(pos));
+            pos++;
+        }
+        return side(this.data.get(members));
+    }
+
+    private static Side side(byte side)
+    {
+        return side == SIDE_CLIENT ? Side.CLIENT : side == SIDE_SERVER ? Side.SERVER : Side.BOTH;
+    }
+
+    private int find(byte[] name)
+    {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(this.data.getInt(HEADER + mid * 8), name);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return this.data.getInt(HEADER + mid * 8 + 4);
+        }
+        return -1;
+    }
+
+    // Compares the string stored at pos with the name, by unsigned bytes.
+    private int compare(int pos, byte[] name)
+    {
+        int len = this.data.getShort(pos) & 0xFFFF;
+        pos += 2;
+        for (int x = 0; x < Math.min(len, name.length); x++)
+        {
+            int cmp = Integer.compare(this.data.get(pos + x) & 0xFF, name[x] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(len, name.length);
+    }
+
+    private String readString(int pos)
+    {
+        byte[] buf = new byte[this.data.getShort(pos) & 0xFFFF];
+        ByteBuffer dup = this.data.duplicate();
+        dup.position(pos + 2);
+        dup.get(buf);
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the classes and their members, as class -> member name -> descriptors, in the compiled format.
+     */
+    static void write(File file, Map<String, Map<String, Set<String>>> classes) throws IOException
+    {
+        Builder builder = new Builder();
+        for (Map.Entry<String, Map<String, Set<String>>> cls : classes.entrySet())
+        {
+            builder.add(cls.getKey(), SIDE_NONE);
+            for (Map.Entry<String, Set<String>> member : cls.getValue().entrySet())
+            {
+                for (String desc : member.getValue())
+                    builder.add(cls.getKey(), member.getKey(), desc, SIDE_NONE);
+            }
+        }
+        builder.write(file);
+    }
+
+    /**
+     * Collects classes and members with their sides, safe to fill from several threads at once.
+     */
+    static class Builder
+    {
+        // Members are kept sorted and classes are sorted when written, so the same data always compiles to the same file.
+        private final Map<String, Byte> sides = new HashMap<>();
+        private final Map<String, Map<String, Map<String, Byte>>> members = new HashMap<>();
+
+        synchronized void add(String cls, byte side)
+        {
+            this.sides.put(cls, side);
+        }
+
+        synchronized void add(String cls, String name, String desc, byte side)
+        {
+            this.sides.putIfAbsent(cls, SIDE_NONE);
+            this.members.computeIfAbsent(cls, k -> new TreeMap<>()).computeIfAbsent(name, k -> new TreeMap<>()).put(desc, side);
+        }
+
+        synchronized void write(File file) throws IOException
+        {
+            Map<String, byte[]> encoded = new HashMap<>();
+            for (String cls : this.sides.keySet())
+                encoded.put(cls, utf8(cls));
+            List<String> sorted = new ArrayList<>(this.sides.keySet());
+            sorted.sort((a, b) -> compare(encoded.get(a), encoded.get(b)));
+
+            if (file.getParentFile() != null && !file.getParentFile().exists())
+                file.getParentFile().mkdirs();
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+
+                // Names follow the table, then the members of every class.
+                int pos = HEADER + sorted.size() * 8;
+                int[] nameOffsets = new int[sorted.size()];
+                for (int x = 0; x < sorted.size(); x++)
+                {
+                    nameOffsets[x] = pos;
+                    pos += 2 + encoded.get(sorted.get(x)).length;
+                }
+
+                List<byte[]> blocks = new ArrayList<>(sorted.size());
+                for (String cls : sorted)
+                    blocks.add(block(this.sides.get(cls), this.members.getOrDefault(cls, new TreeMap<>())));
+
+                for (int x = 0; x < sorted.size(); x++)
+                {
+                    out.writeInt(nameOffsets[x]);
+                    out.writeInt(pos);
+                    pos += blocks.get(x).length;
+                }
+                for (String cls : sorted)
+                {
+                    byte[] name = encoded.get(cls);
+                    out.writeShort(name.length);
+                    out.write(name);
+                }
+                for (byte[] block : blocks)
+                    out.write(block);
+            }
+        }
+
+        private static byte[] block(byte side, Map<String, Map<String, Byte>> members) throws IOException
+        {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            int count = 0;
+            for (Map<String, Byte> descs : members.values())
+                count += descs.size();
+
+            out.writeByte(side);
+            out.writeInt(count);
+            for (Map.Entry<String, Map<String, Byte>> entry : members.entrySet())
+            {
+                byte[] name = utf8(entry.getKey());
+                for (Map.Entry<String, Byte> desc : entry.getValue().entrySet())
+                {
+                    byte[] descBytes = utf8(desc.getKey());
+                    out.writeShort(name.length);
+                    out.write(name);
+                    out.writeShort(descBytes.length);
+                    out.write(descBytes);
+                    out.writeByte(desc.getValue());
+                }
+            }
+            return buf.toByteArray();
+        }
+    }
+
+    private static byte[] utf8(String value) throws IOException
+    {
+        byte[] ret = value.getBytes(StandardCharsets.UTF_8);
+        if (ret.length > 0xFFFF)
+            throw new IOException("Name is too long to compile: " + value);
+        return ret;
+    }
+
+    private static int compare(byte[] a, byte[] b)
+    {
+        for (int x = 0; x < Math.min(a.length, b.length); x++)
+        {
+            int cmp = Integer.compare(a[x] & 0xFF, b[x] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(a.length, b.length);
+    }
+}
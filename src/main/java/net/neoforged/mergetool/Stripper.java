@@ -19,42 +19,187 @@
 package net.neoforged.mergetool;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.tree.AnnotationNode;
-import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
 public class Stripper
 {
-    private Set<String> classes = new HashSet<>();
-    private Set<String> targets = new HashSet<>();
+    private static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    private static final Set<String> TYPES = new HashSet<>();
+    // The same descriptors as they are encoded in the constant pool, they are all ASCII so modified UTF-8 is plain bytes.
+    private static final byte[][] TYPE_BYTES;
+    static
+    {
+        for (AnnotationVersion an : AnnotationVersion.values())
+        {
+            for (String cls : an.getClasses())
+                TYPES.add('L' + cls + ';');
+        }
+        TYPE_BYTES = TYPES.stream().map(t -> t.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+    }
+
+    // Class -> method name -> method descriptors, so lookups while stripping don't need to build any strings.
+    private Map<String, Map<String, Set<String>>> targets = new HashMap<>();
+    private List<SideIndex> compiled = new ArrayList<>();
+    private ClassFilter filter = new ClassFilter();
+    private int threads = 1;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private long budget = DEFAULT_BUDGET;
+    private MergeStats stats = new MergeStats();
+    private MergeListener listener = null;
+
+    /**
+     * Sets the number of worker threads used to strip classes, a value of 0 or less uses one thread per available processor.
+     * Entries are always written in the order of the input jar, so the output is identical to a single threaded run.
+     */
+    public Stripper threads(int threads)
+    {
+        this.threads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        return this;
+    }
+
+    /**
+     * Sets the deflate level used for entries that have to be compressed, from -1 for the default to 9.
+     * A level of 0 stores every entry without compression, including entries that were compressed in the input jar.
+     */
+    public Stripper compression(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Limits how much is held in memory at once when stripping on several threads, as the uncompressed size of the entries that have been started but not written yet.
+     * A class larger than the budget is still stripped once it is the next one to be written. Defaults to 64MB, a budget of 0 starts every entry at once.
+     */
+    public Stripper memoryBudget(long bytes)
+    {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Invalid memory budget: " + bytes);
+        this.budget = bytes;
+        return this;
+    }
+
+    /**
+     * Only strips classes matching one of the included patterns, see {@link ClassFilter} for the syntax.
+     * Classes that are filtered out are copied to the output as they are, without being read.
+     */
+    public Stripper include(String pattern)
+    {
+        filter.include(pattern);
+        return this;
+    }
+
+    /**
+     * Copies classes matching the pattern to the output as they are, without reading them.
+     */
+    public Stripper exclude(String pattern)
+    {
+        filter.exclude(pattern);
+        return this;
+    }
+
+    /**
+     * Called for every class as it is stripped, possibly from several threads at once.
+     */
+    public Stripper listener(MergeListener listener)
+    {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Statistics for the last, or currently running, call to {@link #process(File, File)}.
+     */
+    public MergeStats getStats()
+    {
+        return this.stats;
+    }
 
+    /**
+     * Loads a list of classes and methods to strip, either as text or in the format written by {@link #compileData(File)} and {@link Merger#sideIndex(File)}.
+     */
     public void loadData(File file) throws IOException
     {
-        Files.lines(file.toPath()).forEach(line ->
+        if (SideIndex.isCompiled(file))
         {
-            int idx = line.indexOf('#');
-            if (idx == 0 || line.isEmpty()) return;
-            if (idx != -1) line = line.substring(0, idx - 1);
-            if (line.charAt(0) == '\t') line = line.substring(1);
-            String[] pts = (line.trim() + "    ").split(" ", -1);
-            classes.add(pts[0]);
-            if (pts.length > 1)
-                targets.add(pts[0] + ' ' + pts[1]);
+            compiled.add(SideIndex.load(file));
+            return;
+        }
+
+        try (Stream<String> lines = Files.lines(file.toPath()))
+        {
+            lines.forEach(line -> parseLine(line));
+        }
+    }
+
+    private void parseLine(String line)
+    {
+        int idx = line.indexOf('#');
+        if (idx == 0 || line.isEmpty()) return;
+        if (idx != -1) line = line.substring(0, idx - 1);
+        if (line.charAt(0) == '\t') line = line.substring(1);
+        String[] pts = (line.trim() + "    ").split(" ", -1);
+        Map<String, Set<String>> methods = targets.computeIfAbsent(pts[0], k -> new HashMap<>());
+        int desc = pts[1].indexOf('(');
+        if (desc != -1)
+            methods.computeIfAbsent(pts[1].substring(0, desc), k -> new HashSet<>()).add(pts[1].substring(desc));
+    }
+
+    /**
+     * Writes everything that has been loaded so far in a compact binary form, which loads without parsing anything.
+     */
+    public void compileData(File output) throws IOException
+    {
+        Map<String, Map<String, Set<String>>> all = new HashMap<>();
+        for (SideIndex index : compiled)
+        {
+            for (String cls : index.getClasses())
+                all.put(cls, getMethods(cls));
+        }
+        for (String cls : targets.keySet())
+            all.put(cls, getMethods(cls));
+        SideIndex.write(output, all);
+    }
+
+    // The methods to strip in the class as name -> descriptors, or null if the class isn't listed anywhere.
+    private Map<String, Set<String>> getMethods(String cls)
+    {
+        Map<String, Set<String>> ret = targets.get(cls);
+        for (SideIndex index : compiled)
+        {
+            Map<String, Set<String>> members = index.getMembers(cls);
+            if (members == null)
+                continue;
+            if (ret == null)
+                ret = members;
             else
-                targets.add(pts[0]);
-        });
+            {
+                Map<String, Set<String>> merged = new HashMap<>();
+                ret.forEach((k, v) -> merged.put(k, new HashSet<>(v)));
+                members.forEach((k, v) -> merged.computeIfAbsent(k, n -> new HashSet<>()).addAll(v));
+                ret = merged;
+            }
+        }
+        return ret;
     }
 
     public void process(File input, File output) throws IOException
@@ -63,71 +208,208 @@ public class Stripper
         if (!output.getParentFile().exists()) output.getParentFile().mkdirs();
         output.createNewFile();
 
-        Set<String> types = new HashSet<>();
-        for (AnnotationVersion an : AnnotationVersion.values())
+        process(JarSource.of(input), JarSink.of(output));
+    }
+
+    public void process(JarSource input, JarSink output) throws IOException
+    {
+        this.stats = new MergeStats();
+        long start = System.nanoTime();
+        try (ZipReader zin = input.open();
+             ZipWriter zos = output.open(this.stats, this.level))
         {
-            for (String cls : an.getClasses())
-                types.add('L' + cls + ';');
+            this.stats.time(MergeStats.Phase.INDEX, start);
+            List<ZipReader.Entry> entries = zin.getEntries();
+            // Compression happens on the workers too, only entries that can be copied as they are are left to the writing thread.
+            List<EntryTask> tasks = new ArrayList<>(entries.size());
+            for (ZipReader.Entry entry : entries)
+            {
+                Map<String, Set<String>> methods = getTarget(entry);
+                if (methods != null)
+                    tasks.add(new EntryTask(entry.getName(), entry.getSize(), () -> stripEntry(zin, zos, entry, methods)));
+                else if (!zos.canCopy(entry))
+                    tasks.add(new EntryTask(entry.getName(), entry.getSize(), () -> zos.convert(zin, entry)));
+                else
+                    tasks.add(new EntryTask(entry.getName(), 0, null)); // Not something we touch, so there is no need to inflate it
+            }
+
+            EntryTask.runAll(tasks, this.threads, null, this.budget, (x, data) ->
+            {
+                if (data == null)
+                    copy(zos, zin, entries.get(x));
+                else
+                    zos.writeRaw(entries.get(x), data);
+            });
+        }
+        this.stats.finish();
+    }
+
+    private Map<String, Set<String>> getTarget(ZipReader.Entry entry)
+    {
+        String name = entry.getName();
+        if (!name.endsWith(".class"))
+            return null;
+        name = name.substring(0, name.length() - 6);
+        return filter.matches(name) ? getMethods(name) : null;
+    }
+
+    private void copy(ZipWriter zos, ZipReader zin, ZipReader.Entry entry) throws IOException
+    {
+        if (zos.canCopy(entry))
+            this.stats.add(MergeStats.Count.COPIED, 1);
+        zos.copy(zin, entry);
+    }
+
+    private RawEntry stripEntry(ZipReader zin, ZipWriter zos, ZipReader.Entry entry, Map<String, Set<String>> methods) throws IOException
+    {
+        long start = System.nanoTime();
+        byte[] data = zin.read(entry);
+        this.stats.time(MergeStats.Phase.READ, start);
+        this.stats.add(MergeStats.Count.BYTES_READ, data.length);
+
+        long strip = System.nanoTime();
+        // Classes without any of the annotations, such as ones listed in data from an older version, are kept as they are.
+        byte[] ret = hasAnnotations(data) ? stripClass(data, methods) : null;
+        this.stats.time(MergeStats.Phase.MERGE, strip);
+        if (ret == null)
+        {
+            this.stats.add(MergeStats.Count.UNANNOTATED, 1);
+            return zos.canCopy(entry) ? zin.readRaw(entry) : zos.compress(data);
         }
+        this.stats.add(MergeStats.Count.STRIPPED, 1);
 
-        try (ZipInputStream  zis = new ZipInputStream(new FileInputStream(input));
-             ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(output)))
+        if (this.listener != null)
+            this.listener.classProcessed(entry.getName().substring(0, entry.getName().length() - 6), MergeListener.Kind.STRIPPED, System.nanoTime() - start);
+        return zos.compress(ret);
+    }
+
+    /*
+     * Whether any of the annotation descriptors are in the constant pool of the class, which they have to be for the class or any of its methods to use them.
+     * Only walks the constant pool, so it is much cheaper than parsing the class. Anything it doesn't understand is assumed to have them.
+     */
+    private static boolean hasAnnotations(byte[] data)
+    {
+        if (data.length < 10 || readInt(data, 0) != 0xCAFEBABE)
+            return true;
+
+        int count = readShort(data, 8);
+        int pos = 10;
+        for (int x = 1; x < count; x++)
         {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null)
+            if (pos >= data.length)
+                return true;
+            switch (data[pos])
             {
-                ZipEntry next = new ZipEntry(entry.getName());
-                next.setTime(entry.getTime());
-                next.setLastModifiedTime(entry.getLastModifiedTime());
-                zos.putNextEntry(next);
-                if (!entry.getName().endsWith(".class") || !classes.contains(entry.getName().substring(0, entry.getName().length() - 6)))
-                {
-                    int read;
-                    byte[] buf = new byte[0x100];
-                    while ((read = zis.read(buf, 0, buf.length)) != -1)
-                        zos.write(buf, 0, read);
-                }
-                else
-                {
-                    ClassReader reader = new ClassReader(zis);
-                    ClassNode node = new ClassNode();
-                    reader.accept(node, 0);
+                case 1: // Utf8
+                    if (pos + 3 > data.length)
+                        return true;
+                    int len = readShort(data, pos + 1);
+                    if (matchesType(data, pos + 3, len))
+                        return true;
+                    pos += 3 + len;
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    pos += 3;
+                    break;
+                case 15: // MethodHandle
+                    pos += 4;
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: // Integer, Float, refs, NameAndType, Dynamic, InvokeDynamic
+                    pos += 5;
+                    break;
+                case 5: case 6: // Long and Double take two slots
+                    pos += 9;
+                    x++;
+                    break;
+                default:
+                    return true;
+            }
+        }
+        return false;
+    }
 
-                    if (node.methods != null)
-                    {
-                        node.methods.forEach(mtd ->
-                        {
-                            if (targets.contains(node.name + ' ' + mtd.name + mtd.desc))
-                            {
-                                if (mtd.visibleAnnotations != null)
-                                {
-                                    Iterator<AnnotationNode> itr = mtd.visibleAnnotations.iterator();
-                                    while (itr.hasNext())
-                                    {
-                                        if (types.contains(itr.next().desc))
-                                            itr.remove();
-                                    }
-                                }
-                            }
-                        });
-                    }
+    private static boolean matchesType(byte[] data, int start, int len)
+    {
+        if (start + len > data.length)
+            return true;
+        for (byte[] type : TYPE_BYTES)
+        {
+            if (type.length != len)
+                continue;
+            int x = 0;
+            while (x < len && data[start + x] == type[x])
+                x++;
+            if (x == len)
+                return true;
+        }
+        return false;
+    }
+
+    private static int readShort(byte[] data, int pos)
+    {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int pos)
+    {
+        return (readShort(data, pos) << 16) | readShort(data, pos + 2);
+    }
+
+    // The stripped class, or null if there was nothing to strip.
+    private byte[] stripClass(byte[] data, Map<String, Set<String>> methods)
+    {
+        // Seeding the writer with the reader copies every method we don't strip as-is, instead of rebuilding the whole class.
+        // That also keeps the descriptors of stripped annotations in the constant pool, so stripping a stripped jar again only gets this far.
+        ClassReader reader = new ClassReader(data);
+        ClassWriter writer = new ClassWriter(reader, 0);
+        AnnotationStripper stripper = new AnnotationStripper(writer, methods);
+        reader.accept(stripper, 0);
+        return stripper.stripped ? writer.toByteArray() : null;
+    }
+
+    private static class AnnotationStripper extends ClassVisitor
+    {
+        private final Map<String, Set<String>> methods;
+        private boolean stripped = false;
 
-                    if (node.visibleAnnotations != null)
+        private AnnotationStripper(ClassVisitor cv, Map<String, Set<String>> methods)
+        {
+            super(Opcodes.ASM9, cv);
+            this.methods = methods;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible)
+        {
+            if (visible && TYPES.contains(descriptor))
+            {
+                this.stripped = true;
+                return null;
+            }
+            return super.visitAnnotation(descriptor, visible);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions)
+        {
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+            Set<String> descs = this.methods.get(name);
+            if (mv == null || descs == null || !descs.contains(descriptor))
+                return mv;
+
+            return new MethodVisitor(Opcodes.ASM9, mv)
+            {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible)
+                {
+                    if (visible && TYPES.contains(desc))
                     {
-                        Iterator<AnnotationNode> itr = node.visibleAnnotations.iterator();
-                        while (itr.hasNext())
-                        {
-                            if (types.contains(itr.next().desc))
-                                itr.remove();
-                        }
+                        AnnotationStripper.this.stripped = true;
+                        return null;
                     }
-
-                    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-                    node.accept(writer);
-                    zos.write(writer.toByteArray());
+                    return super.visitAnnotation(desc, visible);
                 }
-                zos.closeEntry();
-            }
+            };
         }
     }
 }
@@ -0,0 +1,462 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip file by memory mapping it, or from a buffer already in memory, and parsing the central directory once.
+ * Entry data is exposed as slices of the mapped file, so it can be copied to another zip without inflating it,
+ * and inflated straight into an array of the exact size when it does need to be read.
+ * Safe to read from multiple threads at once.
+ */
+class ZipReader implements Closeable
+{
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_HEADER = 0x06054b50;
+    static final int ZIP64_END_HEADER = 0x06064b50;
+    static final int ZIP64_LOCATOR = 0x07064b50;
+    static final int ZIP64_EXTRA = 0x0001;
+
+    static final String BUNDLER_VERSIONS = "META-INF/versions.list";
+    private static final String BUNDLER_DIR = "META-INF/versions/";
+
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CHUNK = 8192;
+    private static final byte[] PADDING = new byte[1];
+
+    // Inflaters hold native memory that is slow to set up, so every thread keeps one for all of its reads, along with a buffer for input from mapped files.
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[CHUNK]);
+
+    private final String name;
+    private final FileChannel channel;
+    private final ByteBuffer data;
+    private final List<Entry> entries;
+    private final Map<String, Entry> index;
+
+    ZipReader(File file) throws IOException
+    {
+        this(file.toPath());
+    }
+
+    /**
+     * Memory maps the file if it is on the default file system, other file systems such as zipfs can't be mapped so the file is read into memory.
+     */
+    ZipReader(Path path) throws IOException
+    {
+        this.name = path.toString();
+        if (path.getFileSystem() != FileSystems.getDefault())
+        {
+            this.channel = null;
+            this.data = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+            this.entries = readEntries();
+            this.index = index(this.entries);
+            return;
+        }
+
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            long size = this.channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new ZipException("Zip file is too large to map: " + path);
+
+            this.data = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            this.entries = readEntries();
+            this.index = index(this.entries);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the zip between the position and limit of the buffer, without copying it.
+     */
+    ZipReader(ByteBuffer data, String name) throws IOException
+    {
+        this.name = name;
+        this.channel = null;
+        this.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.entries = readEntries();
+        this.index = index(this.entries);
+    }
+
+    private List<Entry> readEntries() throws IOException
+    {
+        return Collections.unmodifiableList(Arrays.asList(readCentralDirectory()));
+    }
+
+    private static Map<String, Entry> index(List<Entry> entries)
+    {
+        Map<String, Entry> ret = new HashMap<>(entries.size() * 4 / 3 + 1);
+        for (Entry entry : entries)
+            ret.put(entry.name, entry);
+        return ret;
+    }
+
+    private Entry[] readCentralDirectory() throws IOException
+    {
+        ByteBuffer buf = this.data;
+        int length = buf.capacity();
+
+        int end = -1;
+        for (int x = length - END_SIZE, min = Math.max(0, length - END_SIZE - 0xFFFF); x >= min; x--)
+        {
+            if (buf.getInt(x) == END_HEADER)
+            {
+                end = x;
+                break;
+            }
+        }
+        if (end == -1)
+            throw new ZipException("Could not find the end of the central directory: " + this.name);
+
+        long count = buf.getShort(end + 10) & 0xFFFF;
+        long start = buf.getInt(end + 16) & 0xFFFFFFFFL;
+
+        if (count == 0xFFFF || start == 0xFFFFFFFFL)
+        {
+            int locator = end - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || buf.getInt(locator) != ZIP64_LOCATOR)
+                throw new ZipException("Missing zip64 end of central directory locator: " + this.name);
+            int zip64 = checkedOffset(buf.getLong(locator + 8));
+            if (buf.getInt(zip64) != ZIP64_END_HEADER)
+                throw new ZipException("Invalid zip64 end of central directory: " + this.name);
+            count = buf.getLong(zip64 + 32);
+            start = buf.getLong(zip64 + 48);
+        }
+
+        if (count > length / 46)
+            throw new ZipException("Invalid entry count in central directory: " + this.name);
+
+        Entry[] ret = new Entry[(int)count];
+        int pos = checkedOffset(start);
+        byte[] name = new byte[256];
+        for (int x = 0; x < ret.length; x++)
+        {
+            if (buf.getInt(pos) != CENTRAL_HEADER)
+                throw new ZipException("Invalid central directory header at " + pos + ": " + this.name);
+
+            int method = buf.getShort(pos + 10) & 0xFFFF;
+            int time = buf.getInt(pos + 12);
+            long crc = buf.getInt(pos + 16) & 0xFFFFFFFFL;
+            long csize = buf.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = buf.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLen = buf.getShort(pos + 28) & 0xFFFF;
+            int extraLen = buf.getShort(pos + 30) & 0xFFFF;
+            int commentLen = buf.getShort(pos + 32) & 0xFFFF;
+            long offset = buf.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            if (name.length < nameLen)
+                name = new byte[nameLen];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(pos + 46);
+            dup.get(name, 0, nameLen);
+
+            if (size == 0xFFFFFFFFL || csize == 0xFFFFFFFFL || offset == 0xFFFFFFFFL)
+            {
+                // The zip64 extra only holds the values that overflowed, in this order.
+                int extra = pos + 46 + nameLen;
+                int extraEnd = extra + extraLen;
+                while (extra + 4 <= extraEnd)
+                {
+                    int tag = buf.getShort(extra) & 0xFFFF;
+                    int len = buf.getShort(extra + 2) & 0xFFFF;
+                    if (tag == ZIP64_EXTRA)
+                    {
+                        int field = extra + 4;
+                        if (size == 0xFFFFFFFFL)
+                        {
+                            size = buf.getLong(field);
+                            field += 8;
+                        }
+                        if (csize == 0xFFFFFFFFL)
+                        {
+                            csize = buf.getLong(field);
+                            field += 8;
+                        }
+                        if (offset == 0xFFFFFFFFL)
+                            offset = buf.getLong(field);
+                        break;
+                    }
+                    extra += 4 + len;
+                }
+            }
+
+            ret[x] = new Entry(new String(name, 0, nameLen, StandardCharsets.UTF_8), method, time, crc, csize, size, checkedOffset(offset));
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+        return ret;
+    }
+
+    private int checkedOffset(long offset) throws ZipException
+    {
+        if (offset < 0 || offset >= this.data.capacity())
+            throw new ZipException("Invalid offset in zip file: " + offset);
+        return (int)offset;
+    }
+
+    /**
+     * All entries, in the order of the central directory.
+     */
+    List<Entry> getEntries()
+    {
+        return this.entries;
+    }
+
+    Entry getEntry(String name)
+    {
+        return this.index.get(name);
+    }
+
+    /**
+     * The still compressed data of the entry, as a slice of the mapped file.
+     */
+    ByteBuffer getData(Entry entry) throws IOException
+    {
+        int start = entry.dataStart;
+        if (start == -1)
+        {
+            if (this.data.getInt(entry.offset) != LOCAL_HEADER)
+                throw new ZipException("Invalid local header for " + entry.name);
+            start = entry.offset + LOCAL_HEADER_SIZE + (this.data.getShort(entry.offset + 26) & 0xFFFF) + (this.data.getShort(entry.offset + 28) & 0xFFFF);
+            if (start + entry.csize > this.data.capacity())
+                throw new ZipException("Truncated entry: " + entry.name);
+            entry.dataStart = start;
+        }
+
+        ByteBuffer ret = this.data.duplicate();
+        ret.position(start);
+        ret.limit(start + (int)entry.csize);
+        return ret.slice();
+    }
+
+    RawEntry readRaw(Entry entry) throws IOException
+    {
+        return new RawEntry(entry.method, entry.crc, entry.size, getData(entry));
+    }
+
+    /**
+     * Reads the uncompressed contents of the entry into an array of exactly its size.
+     */
+    byte[] read(Entry entry) throws IOException
+    {
+        if (entry.size > Integer.MAX_VALUE - 8)
+            throw new ZipException("Entry is too large to read: " + entry.name);
+
+        ByteBuffer in = getData(entry);
+        byte[] ret = new byte[(int)entry.size];
+
+        if (entry.method == ZipEntry.STORED)
+        {
+            if (in.remaining() != ret.length)
+                throw new ZipException("Invalid size for stored entry: " + entry.name);
+            in.get(ret);
+            return ret;
+        }
+        if (entry.method != ZipEntry.DEFLATED)
+            throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.name);
+
+        Inflater inflater = INFLATER.get();
+        try
+        {
+            byte[] chunk = null;
+            boolean padded = false;
+            int len = 0;
+            while (!inflater.finished() && len < ret.length)
+            {
+                if (inflater.needsInput())
+                {
+                    if (in.hasArray() && in.hasRemaining())
+                    {
+                        // Already on the heap, so it can be inflated from where it is
+                        inflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+                        in.position(in.limit());
+                    }
+                    else if (in.hasRemaining())
+                    {
+                        if (chunk == null)
+                            chunk = CHUNKS.get();
+                        int count = Math.min(chunk.length, in.remaining());
+                        in.get(chunk, 0, count);
+                        inflater.setInput(chunk, 0, count);
+                    }
+                    else if (!padded)
+                    {
+                        // Inflater needs one extra byte past the end of the data when it's not wrapped
+                        padded = true;
+                        inflater.setInput(PADDING, 0, 1);
+                    }
+                    else
+                        throw new ZipException("Truncated compressed data: " + entry.name);
+                }
+                if (inflater.needsDictionary())
+                    throw new ZipException("Invalid compressed data: " + entry.name);
+                len += inflater.inflate(ret, len, ret.length - len);
+            }
+            if (len != ret.length)
+                throw new ZipException("Invalid size for entry: " + entry.name + " expected " + ret.length + " got " + len);
+            return ret;
+        }
+        catch (DataFormatException e)
+        {
+            throw new ZipException("Invalid compressed data: " + entry.name + ": " + e.getMessage());
+        }
+        finally
+        {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Server jars since 1.18 are bundlers, with the real server jar nested under META-INF/versions next to its libraries, and listed in META-INF/versions.list.
+     * Returns a reader for the nested server jar if this is a bundler, or this reader if it isn't.
+     * Stored nested jars are read in place as a slice of this one, deflated ones are inflated into memory once.
+     * This reader is closed when a nested one is returned, mapped data stays valid without its channel.
+     */
+    ZipReader unbundle() throws IOException
+    {
+        Entry versions = getEntry(BUNDLER_VERSIONS);
+        if (versions == null)
+            return this;
+
+        try
+        {
+            String path = null;
+            for (String line : new String(read(versions), StandardCharsets.UTF_8).split("\n"))
+            {
+                // hash, version id, path relative to META-INF/versions
+                String[] pts = line.trim().split("\t");
+                if (pts.length != 3)
+                    continue;
+                if (path != null)
+                    throw new ZipException("Bundled jar lists more than one version: " + this.name);
+                path = BUNDLER_DIR + pts[2];
+            }
+            if (path == null)
+                throw new ZipException("Bundled jar does not list a version: " + this.name);
+
+            Entry entry = getEntry(path);
+            if (entry == null)
+                throw new ZipException("Missing bundled jar " + path + " in " + this.name);
+
+            String name = this.name + "!/" + path;
+            ByteBuffer data = entry.method == ZipEntry.STORED ? getData(entry) : ByteBuffer.wrap(read(entry));
+            return new ZipReader(data, name);
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.channel != null)
+            this.channel.close();
+    }
+
+    static class Entry
+    {
+        private final String name;
+        private final int method;
+        private final int time;
+        private final long crc;
+        private final long csize;
+        private final long size;
+        private final int offset;
+        private volatile int dataStart = -1;
+
+        private Entry(String name, int method, int time, long crc, long csize, long size, int offset)
+        {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.csize = csize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        String getName()
+        {
+            return this.name;
+        }
+
+        long getSize()
+        {
+            return this.size;
+        }
+
+        long getCompressedSize()
+        {
+            return this.csize;
+        }
+
+        long getCrc()
+        {
+            return this.crc;
+        }
+
+        int getMethod()
+        {
+            return this.method;
+        }
+
+        /**
+         * The MS-DOS date and time from the central directory, as stored in the zip.
+         */
+        int getDosTime()
+        {
+            return this.time;
+        }
+
+        boolean isDirectory()
+        {
+            return this.name.endsWith("/");
+        }
+    }
+}
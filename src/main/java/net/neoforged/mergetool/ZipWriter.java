@@ -0,0 +1,340 @@
+/*
+ * MergeTool
+ * Copyright (c) 2016-2018.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation version 2.1
+ * of the License.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.neoforged.mergetool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A minimal zip writer that, unlike ZipOutputStream, can also write entries that are already compressed.
+ * Entries are written from a single thread, but {@link #compress(byte[])} can be called from any thread,
+ * so the expensive part can run on workers while the entries are still written in a stable order.
+ */
+class ZipWriter implements Closeable
+{
+    private static final int UTF8_FLAG = 0x800;
+    private static final int MAX_BUFFER = 1 << 20; // Larger buffers aren't kept, so one huge entry doesn't pin its memory for the life of the thread
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[Deflater.BEST_COMPRESSION + 2]);
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private final OutputStream out;
+    private final List<Header> headers = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final byte[] scratch = new byte[8192];
+    private final MergeStats stats;
+    private final int method;
+    private final int level;
+    private long written = 0;
+
+    /**
+     * @param level The deflate level of new entries, 0 stores them without compression.
+     */
+    ZipWriter(OutputStream out, MergeStats stats, int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        this.out = out;
+        this.stats = stats;
+        this.method = level == Deflater.NO_COMPRESSION ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        this.level = level;
+    }
+
+    void write(String name, long time, byte[] data) throws IOException
+    {
+        writeEntry(name, toDosTime(time), compress(data));
+    }
+
+    void writeRaw(String name, long time, RawEntry entry) throws IOException
+    {
+        writeEntry(name, toDosTime(time), entry);
+    }
+
+    /**
+     * Writes new contents for an entry of another zip, keeping its name and timestamp.
+     */
+    void writeRaw(ZipReader.Entry source, RawEntry entry) throws IOException
+    {
+        writeEntry(source.getName(), source.getDosTime(), entry);
+    }
+
+    /**
+     * Copies an entry of another zip, keeping its name and timestamp.
+     */
+    void copy(ZipReader reader, ZipReader.Entry entry) throws IOException
+    {
+        writeRaw(entry, convert(reader, entry));
+    }
+
+    /**
+     * Whether an entry of another zip can be copied without inflating it, which is when it uses the same compression method as this writer.
+     * Deflated entries are copied as they are, even if they were compressed at a different level.
+     */
+    boolean canCopy(ZipReader.Entry entry)
+    {
+        return entry.getMethod() == this.method;
+    }
+
+    /**
+     * The data of an entry of another zip, compressed the way this writer compresses new entries.
+     * Safe to call from any thread.
+     */
+    RawEntry convert(ZipReader reader, ZipReader.Entry entry) throws IOException
+    {
+        return canCopy(entry) ? reader.readRaw(entry) : compress(reader.read(entry));
+    }
+
+    void writeEntry(String name, int time, RawEntry entry) throws IOException
+    {
+        long start = System.nanoTime();
+        addName(name);
+
+        Header header = new Header(name.getBytes(StandardCharsets.UTF_8), entry.method, time, entry.crc, entry.getCompressedSize(), entry.size, this.written);
+        this.headers.add(header);
+
+        ByteBuffer local = buffer(30 + header.name.length);
+        local.putInt(ZipReader.LOCAL_HEADER);
+        local.putShort(header.version());
+        local.putShort((short)UTF8_FLAG);
+        local.putShort((short)header.method);
+        local.putInt(header.time);
+        local.putInt((int)header.crc);
+        local.putInt((int)header.csize);
+        local.putInt((int)header.size);
+        local.putShort((short)header.name.length);
+        local.putShort((short)0);
+        local.put(header.name);
+        local.flip();
+        write(local);
+        write(entry.data.duplicate());
+        this.stats.time(MergeStats.Phase.WRITE, start);
+    }
+
+    void addName(String name) throws ZipException
+    {
+        if (!this.names.add(name))
+            throw new ZipException("duplicate entry: " + name);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        long begin = System.nanoTime();
+        try
+        {
+            long start = this.written;
+            boolean zip64 = this.headers.size() >= 0xFFFF;
+            for (Header header : this.headers)
+            {
+                boolean large = header.offset >= 0xFFFFFFFFL;
+                zip64 |= large;
+
+                ByteBuffer cen = buffer(46 + header.name.length + (large ? 12 : 0));
+                cen.putInt(ZipReader.CENTRAL_HEADER);
+                cen.putShort(large ? (short)45 : header.version());
+                cen.putShort(large ? (short)45 : header.version());
+                cen.putShort((short)UTF8_FLAG);
+                cen.putShort((short)header.method);
+                cen.putInt(header.time);
+                cen.putInt((int)header.crc);
+                cen.putInt((int)header.csize);
+                cen.putInt((int)header.size);
+                cen.putShort((short)header.name.length);
+                cen.putShort((short)(large ? 12 : 0));
+                cen.putShort((short)0); // Comment
+                cen.putShort((short)0); // Disk
+                cen.putShort((short)0); // Internal attributes
+                cen.putInt(0);          // External attributes
+                cen.putInt(large ? 0xFFFFFFFF : (int)header.offset);
+                cen.put(header.name);
+                if (large)
+                {
+                    cen.putShort((short)ZipReader.ZIP64_EXTRA);
+                    cen.putShort((short)8);
+                    cen.putLong(header.offset);
+                }
+                cen.flip();
+                write(cen);
+            }
+
+            long end = this.written;
+            zip64 |= start >= 0xFFFFFFFFL;
+            if (zip64)
+            {
+                ByteBuffer buf = buffer(56 + 20);
+                buf.putInt(ZipReader.ZIP64_END_HEADER);
+                buf.putLong(44);
+                buf.putShort((short)45);
+                buf.putShort((short)45);
+                buf.putInt(0);
+                buf.putInt(0);
+                buf.putLong(this.headers.size());
+                buf.putLong(this.headers.size());
+                buf.putLong(end - start);
+                buf.putLong(start);
+
+                buf.putInt(ZipReader.ZIP64_LOCATOR);
+                buf.putInt(0);
+                buf.putLong(end);
+                buf.putInt(1);
+                buf.flip();
+                write(buf);
+            }
+
+            ByteBuffer buf = buffer(22);
+            buf.putInt(ZipReader.END_HEADER);
+            buf.putShort((short)0);
+            buf.putShort((short)0);
+            buf.putShort((short)Math.min(this.headers.size(), 0xFFFF));
+            buf.putShort((short)Math.min(this.headers.size(), 0xFFFF));
+            buf.putInt((int)Math.min(end - start, 0xFFFFFFFFL));
+            buf.putInt((int)Math.min(start, 0xFFFFFFFFL));
+            buf.putShort((short)0);
+            buf.flip();
+            write(buf);
+        }
+        finally
+        {
+            this.out.close();
+            this.stats.time(MergeStats.Phase.WRITE, begin);
+            this.stats.add(MergeStats.Count.BYTES_WRITTEN, this.written);
+        }
+    }
+
+    /**
+     * Compresses new entry data the way this writer is configured to, safe to call from any thread.
+     */
+    RawEntry compress(byte[] data)
+    {
+        long start = System.nanoTime();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer compressed = this.method == ZipEntry.STORED ? ByteBuffer.wrap(data) : ByteBuffer.wrap(deflate(data));
+        RawEntry ret = new RawEntry(this.method, crc.getValue(), data.length, compressed);
+        this.stats.time(MergeStats.Phase.COMPRESS, start);
+        return ret;
+    }
+
+    private byte[] deflate(byte[] data)
+    {
+        // Every thread keeps a deflater for each level and a buffer to deflate into, so the only allocation is the exact size result.
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[this.level + 1];
+        if (deflater == null)
+            deflater = deflaters[this.level + 1] = new Deflater(this.level, true);
+
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = BUFFERS.get();
+            int len = 0;
+            while (!deflater.finished())
+            {
+                if (len == buf.length)
+                {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    if (buf.length <= MAX_BUFFER)
+                        BUFFERS.set(buf);
+                }
+                len += deflater.deflate(buf, len, buf.length - len);
+            }
+            return Arrays.copyOf(buf, len);
+        }
+        finally
+        {
+            deflater.reset();
+        }
+    }
+
+    private void write(ByteBuffer buf) throws IOException
+    {
+        if (buf.hasArray())
+        {
+            this.out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            this.written += buf.remaining();
+            return;
+        }
+
+        while (buf.hasRemaining())
+        {
+            int len = Math.min(buf.remaining(), this.scratch.length);
+            buf.get(this.scratch, 0, len);
+            this.out.write(this.scratch, 0, len);
+            this.written += len;
+        }
+    }
+
+    private static ByteBuffer buffer(int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Same conversion as ZipEntry.setTime, so the output matches what ZipOutputStream wrote for the same time.
+    static int toDosTime(long time)
+    {
+        LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (date.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (date.getYear() - 1980) << 25 | date.getMonthValue() << 21 | date.getDayOfMonth() << 16 |
+                date.getHour() << 11 | date.getMinute() << 5 | date.getSecond() >> 1;
+    }
+
+    private static class Header
+    {
+        private final byte[] name;
+        private final int method;
+        private final int time;
+        private final long crc;
+        private final long csize;
+        private final long size;
+        private final long offset;
+
+        private Header(byte[] name, int method, int time, long crc, long csize, long size, long offset)
+        {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.csize = csize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        private short version()
+        {
+            return (short)(this.method == ZipEntry.DEFLATED ? 20 : 10);
+        }
+    }
+}